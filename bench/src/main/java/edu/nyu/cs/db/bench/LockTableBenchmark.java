@@ -0,0 +1,94 @@
+package edu.nyu.cs.db.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.nyu.cs.db.LockTable;
+import edu.nyu.cs.db.TM;
+import edu.nyu.cs.db.Transaction;
+
+/**
+ * Benchmarks lock checks, lock acquisition and lock release of
+ * {@link LockTable}.
+ * <p>
+ * The table is filled with read locks of <code>holders</code> other
+ * transactions on <code>variables</code> variables before each iteration.
+ *
+ * @author Daniel Wu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockTableBenchmark {
+
+	@Param({ "20", "1000" })
+	public int variables;
+
+	@Param({ "1", "16" })
+	public int holders;
+
+	private LockTable table;
+
+	private String[] variableIds;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		table = new LockTable(1);
+		variableIds = new String[variables];
+		for (int i = 0; i < variables; i++) {
+			variableIds[i] = "x" + (i + 1);
+		}
+		register("B");
+		for (int h = 0; h < holders; h++) {
+			String transId = register("H" + h);
+			for (String var : variableIds) {
+				table.lock(transId, var, LockTable.READ);
+			}
+		}
+	}
+
+	private static String register(String transId) {
+		if (TM.instance().getTransaction(transId) == null) {
+			TM.instance().addTransaction(new Transaction(transId));
+		}
+		return transId;
+	}
+
+	private String nextVariable() {
+		next = next + 1 == variableIds.length ? 0 : next + 1;
+		return variableIds[next];
+	}
+
+	@Benchmark
+	public boolean requireReadLock() {
+		return table.requireLock("B", nextVariable(), LockTable.READ);
+	}
+
+	@Benchmark
+	public boolean requireWriteLock() {
+		return table.requireLock("B", nextVariable(), LockTable.WRITE);
+	}
+
+	@Benchmark
+	public void lockAndRelease() {
+		table.lock("B", nextVariable(), LockTable.READ);
+		table.releaseTransaction("B");
+	}
+}
@@ -0,0 +1,42 @@
+package edu.nyu.cs.db.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.nyu.cs.db.Command;
+import edu.nyu.cs.db.CommandFactory;
+
+/**
+ * Benchmarks {@link CommandFactory#parse(String)} on each kind of input
+ * line.
+ *
+ * @author Daniel Wu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({ "begin(T1)", "R(T1, x4)", "W(T1, x6, 120)", "end(T1)",
+			"recover(3)" })
+	public String command;
+
+	@Benchmark
+	public Command parse() {
+		return CommandFactory.parse(command);
+	}
+}
@@ -0,0 +1,72 @@
+package edu.nyu.cs.db.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.nyu.cs.db.DM;
+import edu.nyu.cs.db.Site;
+import edu.nyu.cs.db.Transaction;
+
+/**
+ * Benchmarks {@link Site#commit(Transaction)} while the site holds
+ * <code>staged</code> uncommitted writes of other transactions.
+ * <p>
+ * The committing transaction writes every even variable of the site, which
+ * are staged again before each invocation.
+ *
+ * @author Daniel Wu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SiteCommitBenchmark {
+
+	@Param({ "0", "1024", "65536" })
+	public int staged;
+
+	private Site site;
+
+	private Transaction transaction;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		site = new Site(1);
+		transaction = new Transaction("C");
+		for (int i = 2; i <= DM.VAR_COUNT; i += 2) {
+			transaction.addVaraible("x" + i);
+		}
+		// writes of other transactions, never committed
+		for (int i = 0; i < staged; i++) {
+			site.write("W", "x" + (DM.VAR_COUNT + 1 + i), i);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void stage() {
+		for (int i = 2; i <= DM.VAR_COUNT; i += 2) {
+			site.write("C", "x" + i, i);
+		}
+	}
+
+	@Benchmark
+	public Site commit() {
+		site.commit(transaction);
+		return site;
+	}
+}
@@ -0,0 +1,71 @@
+package edu.nyu.cs.db.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.nyu.cs.db.TimestampOracle;
+import edu.nyu.cs.db.Variable;
+
+/**
+ * Benchmarks snapshot reads of {@link Variable#valueByTime(long)} at different
+ * history depths.
+ *
+ * @author Daniel Wu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariableBenchmark {
+
+	// number of committed versions
+	@Param({ "1", "16", "256", "4096" })
+	public int depth;
+
+	private Variable variable;
+
+	private long oldest;
+
+	private long newest;
+
+	@Setup
+	public void setup() {
+		variable = new Variable(2);
+		TimestampOracle oracle = TimestampOracle.instance();
+		oldest = oracle.next();
+		for (int i = 1; i < depth; i++) {
+			oracle.tick();
+			variable.setValue(i, oracle.next());
+		}
+		newest = oracle.next();
+	}
+
+	@Benchmark
+	public int readLatest() {
+		return variable.valueByTime(newest);
+	}
+
+	@Benchmark
+	public int readMiddle() {
+		return variable.valueByTime(oldest + (newest - oldest) / 2);
+	}
+
+	@Benchmark
+	public int readCurrent() {
+		return variable.value();
+	}
+}
@@ -0,0 +1,101 @@
+package edu.nyu.cs.db;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import edu.nyu.cs.db.Command.TransactionCommand;
+import edu.nyu.cs.db.Transaction.Priority;
+
+/**
+ * Admission control of read-write transactions.
+ * <p>
+ * At most <code>db.admission.max</code> read-write transactions are active
+ * at a time, 0 for no limit. A transaction beginning over the limit waits,
+ * with its commands queued, until an active one finishes; the slot then
+ * goes to the waiting transaction of highest priority, the oldest first
+ * within a priority class. Read-only transactions take no locks and are
+ * always admitted.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class AdmissionControl {
+
+	private final int max = Config.getInt(Config.ADMISSION_MAX, 0);
+
+	// transactions holding a slot
+	private final Set<String> active = new HashSet<String>();
+
+	// <K,V>=<priority, admissions waiting for a slot in arrival order>
+	private final Map<Priority, LinkedList<TransactionCommand>> waiting = new EnumMap<Priority, LinkedList<TransactionCommand>>(
+			Priority.class);
+
+	public AdmissionControl() {
+		for (Priority priority : Priority.values()) {
+			waiting.put(priority, new LinkedList<TransactionCommand>());
+		}
+	}
+
+	/**
+	 * Takes a slot for transaction if one is free
+	 *
+	 * @param t
+	 *            beginning transaction
+	 * @return true if transaction may run
+	 */
+	public boolean acquire(Transaction t) {
+		if (max <= 0 || t.isReadOnly() || active.contains(t.getId())) {
+			return true;
+		}
+		if (active.size() >= max) {
+			return false;
+		}
+		active.add(t.getId());
+		return true;
+	}
+
+	/**
+	 * Queues admission of transaction until a slot is free
+	 *
+	 * @param admission
+	 *            admission request
+	 * @param priority
+	 *            priority class of transaction
+	 */
+	public void enqueue(TransactionCommand admission, Priority priority) {
+		waiting.get(priority).add(admission);
+	}
+
+	/**
+	 * Frees slot of finished transaction and hands it to next waiting one
+	 *
+	 * @param transId
+	 *            finished transaction id
+	 * @return admission request to retry, holding the freed slot, or null
+	 */
+	public TransactionCommand release(String transId) {
+		if (!active.remove(transId)) {
+			// aborted while waiting
+			for (LinkedList<TransactionCommand> queue : waiting.values()) {
+				for (TransactionCommand admission : queue) {
+					if (admission.arg1.equals(transId)) {
+						queue.remove(admission);
+						return null;
+					}
+				}
+			}
+			return null;
+		}
+		for (LinkedList<TransactionCommand> queue : waiting.values()) {
+			if (!queue.isEmpty()) {
+				TransactionCommand next = queue.poll();
+				active.add(next.arg1);
+				return next;
+			}
+		}
+		return null;
+	}
+}
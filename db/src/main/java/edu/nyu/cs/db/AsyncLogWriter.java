@@ -0,0 +1,167 @@
+package edu.nyu.cs.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log writer backed by a lock-free ring buffer.
+ * <p>
+ * Producers claim a slot with one atomic increment and publish the
+ * preformatted line into it. A single background thread drains the ring in
+ * order into a large buffered writer and flushes only when the ring runs
+ * empty, so output costs one system call per batch instead of one per line.
+ * A full ring blocks producers rather than dropping lines, since the log is
+ * also the commit/abort audit trail. Only if the output fails, or after the
+ * writer is closed, lines are dropped instead of blocking forever.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class AsyncLogWriter implements LogWriter {
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private final AtomicReferenceArray<String> ring;
+
+	private final int mask;
+
+	// next sequence to be claimed by producers
+	private final AtomicLong tail = new AtomicLong();
+
+	// next sequence to be drained by writer thread
+	private volatile long head = 0;
+
+	// all sequences below are on the output
+	private volatile long flushed = 0;
+
+	private volatile boolean running = true;
+
+	// set once output failed, later lines are dropped
+	private volatile boolean failed = false;
+
+	private final Writer output;
+
+	private final Thread drainer;
+
+	/**
+	 * Constructor with ring capacity and output
+	 *
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two
+	 * @param output
+	 *            destination of log lines
+	 */
+	public AsyncLogWriter(int capacity, Writer output) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ring = new AtomicReferenceArray<String>(size);
+		this.mask = size - 1;
+		this.output = output;
+		this.drainer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "log-writer");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	@Override
+	public void write(String line) {
+		if (failed) {
+			return;
+		}
+		long seq = tail.getAndIncrement();
+		// wait for writer thread if ring is full
+		while (seq - head >= ring.length()) {
+			if (failed || !drainer.isAlive()) {
+				// nobody drains the ring any more
+				return;
+			}
+			LockSupport.unpark(drainer);
+			Thread.yield();
+		}
+		ring.lazySet((int) seq & mask, line);
+		LockSupport.unpark(drainer);
+	}
+
+	@Override
+	public void flush() {
+		long target = tail.get();
+		while (flushed < target && drainer.isAlive()) {
+			LockSupport.unpark(drainer);
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		running = false;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		try {
+			while (running || head < tail.get()) {
+				int slot = (int) head & mask;
+				String line = ring.get(slot);
+				if (line == null) {
+					// ring is empty or next slot is not published yet
+					if (flushed < head) {
+						output.flush();
+						flushed = head;
+					}
+					LockSupport.parkNanos(1000000);
+					continue;
+				}
+				ring.lazySet(slot, null);
+				output.write(line);
+				output.write('\n');
+				head++;
+			}
+			output.flush();
+			flushed = head;
+		} catch (IOException e) {
+			failed = true;
+			running = false;
+			Log.warning("Cannot write log, further lines are dropped: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a writer whose output is buffered in large chunks
+	 *
+	 * @param capacity
+	 *            number of ring slots
+	 * @param output
+	 *            destination of log lines
+	 * @return log writer
+	 */
+	public static AsyncLogWriter create(int capacity, Writer output) {
+		if (!(output instanceof BufferedWriter)) {
+			output = new BufferedWriter(output, WRITE_BUFFER_SIZE);
+		}
+		final AsyncLogWriter writer = new AsyncLogWriter(capacity, output);
+		// drain remaining lines if program exits without closing log
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				writer.flush();
+			}
+		}));
+		return writer;
+	}
+}
@@ -1,5 +1,8 @@
 package edu.nyu.cs.db;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This interface defines commands that can be accepted and executed by the
  * system.
@@ -19,7 +22,7 @@ public abstract class Command {
 			return;
 		}
 		// parse value from given parameter, value seperated by comma
-		String[] args = param.split(",");
+		String[] args = split(param);
 		switch (args.length) {
 		case 3:
 			arg3 = args[2].trim();
@@ -30,6 +33,57 @@ public abstract class Command {
 		}
 	}
 
+	/**
+	 * Splits parameters by commas outside of brackets, so that a list such as
+	 * <code>[x1,x2]</code> stays one parameter
+	 * 
+	 * @param param
+	 *            parameters
+	 * @return parameters
+	 */
+	private static String[] split(String param) {
+		List<String> args = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < param.length(); i++) {
+			char c = param.charAt(i);
+			if (c == '[') {
+				depth++;
+			} else if (c == ']') {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				args.add(param.substring(start, i));
+				start = i + 1;
+			}
+		}
+		args.add(param.substring(start));
+		return args.toArray(new String[0]);
+	}
+
+	/**
+	 * Parses a list parameter such as <code>[x1,x2]</code>
+	 * 
+	 * @param arg
+	 *            list parameter, brackets are optional
+	 * @return list items, empty if parameter is null or empty
+	 */
+	public static List<String> parseList(String arg) {
+		List<String> items = new ArrayList<String>();
+		if (arg == null) {
+			return items;
+		}
+		String list = arg.trim();
+		if (list.startsWith("[") && list.endsWith("]")) {
+			list = list.substring(1, list.length() - 1);
+		}
+		for (String item : list.split(",")) {
+			if (!item.trim().isEmpty()) {
+				items.add(item.trim());
+			}
+		}
+		return items;
+	}
+
 	public abstract boolean execute() throws RuntimeException;
 
 	public boolean isTransRequired() {
@@ -43,6 +97,15 @@ public abstract class Command {
 
 	public static abstract class TransactionCommand extends Command {
 
+		// System.nanoTime() when command first waited, 0 if never
+		protected long waitSince = 0;
+
+		// order in which command first blocked, 0 if never
+		protected long sequence = 0;
+
+		// priority class of transaction, see Transaction.Priority
+		protected int priority = 0;
+
 		public TransactionCommand(String param) {
 			super(param);
 		}
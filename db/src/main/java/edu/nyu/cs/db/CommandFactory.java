@@ -1,16 +1,28 @@
 package edu.nyu.cs.db;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import edu.nyu.cs.db.Command.TransactionCommand;
+import edu.nyu.cs.db.Transaction.Priority;
+import edu.nyu.cs.db.Transaction.STATUS;
 
 public class CommandFactory {
 
 	public enum COMMANDS {
 		BEGIN(Begin.class), BEGINRO(BeginRO.class), R(R.class), DUMP(Dump.class), W(
 				W.class), END(End.class), ABORT(Abort.class), FAIL(Fail.class), RECOVER(
-				Recover.class);
+				Recover.class), TRACE(Trace.class), RW(RW.class), BEGINBATCH(
+				BeginBatch.class), RSCAN(RScan.class), VIEW(View.class), RV(RV.class), RESTART(
+				Restart.class), MEMORY(Memory.class), CONTENTION(
+				ContentionProfile.class);
 
 		private Class clazz;
 
@@ -67,6 +79,9 @@ public class CommandFactory {
 
 	/**
 	 * Begin(T1) says that T1 begins.
+	 * <p>
+	 * Begin(T1, [x1,x2], [x3]) also declares that T1 reads x1 and x2 and
+	 * writes x3.
 	 * 
 	 */
 	public static class Begin extends Command {
@@ -75,11 +90,21 @@ public class CommandFactory {
 			super(param);
 		}
 
+		/**
+		 * @return true if read and write sets are declared
+		 */
+		public boolean isDeclared() {
+			return arg2 != null || arg3 != null;
+		}
+
 		@Override
 		public boolean execute() throws RuntimeException {
 			String transactionId = super.arg1;
 			// create read-write transaction
 			Transaction t = new Transaction(transactionId);
+			if (isDeclared()) {
+				t.declare(parseList(arg2), parseList(arg3));
+			}
 			TM.instance().addTransaction(t);
 			// transaction starts
 			t.begin();
@@ -88,6 +113,26 @@ public class CommandFactory {
 
 	}
 
+	/**
+	 * BeginBatch(T1) begins a read-write transaction of batch priority, which
+	 * is admitted after short ones. It takes declared sets like Begin.
+	 * 
+	 */
+	public static class BeginBatch extends Begin {
+
+		public BeginBatch(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			super.execute();
+			TM.instance().getTransaction(arg1).setPriority(Priority.BATCH);
+			return true;
+		}
+
+	}
+
 	/**
 	 * Begins a read-only transaction
 	 * 
@@ -136,16 +181,20 @@ public class CommandFactory {
 			if (!site.hasVariable(variable)) {
 				return false;
 			}
-			// if variable is not ready for reading
-			if (!site.isInitialized(variable)) {
-				return false;
-			}
 			// if current transaction is read-only, obtain no locks
 			if (isReadOnly) {
+				// read committed copies only
+				if (!site.isCommitted(variable)) {
+					return false;
+				}
 				int value = site.readInitial(transId, variable);
 				Log.print_read(site, variable, value);
 				return true;
 			}
+			// if variable is not ready for reading
+			if (!site.isInitialized(variable)) {
+				return false;
+			}
 			// require a read lock
 			if (site.lock(transId, variable, LockTable.READ)) {
 				int value = site.read(variable);
@@ -172,7 +221,7 @@ public class CommandFactory {
 			}
 			// require a write lock
 			if (site.lock(transId, variable, LockTable.WRITE)) {
-				site.write(variable, value);
+				site.write(transId, variable, value);
 				Log.print_write(site, variable, value);
 				return true;
 			}
@@ -186,6 +235,181 @@ public class CommandFactory {
 
 	}
 
+	/**
+	 * RW(T1, [x1,x2], [x4=5,x6=7]) says that T1 reads x1 and x2 and writes 5
+	 * to x4 and 7 to x6 in one operation. Under two phase locking the locks
+	 * of all listed variables are acquired per site in one call.
+	 * 
+	 */
+	public static class RW extends TransactionCommand {
+
+		public RW(String param) {
+			super(param);
+		}
+
+		/**
+		 * @return variables read, in listed order
+		 */
+		public List<String> getReads() {
+			return parseList(arg2);
+		}
+
+		/**
+		 * @return <K,V>=<variable written, value>, in listed order
+		 */
+		public Map<String, Integer> getWrites() {
+			Map<String, Integer> writes = new LinkedHashMap<String, Integer>();
+			for (String item : parseList(arg3)) {
+				int eq = item.indexOf('=');
+				writes.put(item.substring(0, eq).trim(),
+						Integer.parseInt(item.substring(eq + 1).trim()));
+			}
+			return writes;
+		}
+
+		/**
+		 * Splits batch into single reads and writes, for protocols that
+		 * don't lock
+		 * 
+		 * @return read commands followed by write commands
+		 */
+		public List<Command> expand() {
+			List<Command> commands = new ArrayList<Command>();
+			for (String var : getReads()) {
+				commands.add(new R(arg1 + "," + var));
+			}
+			for (Map.Entry<String, Integer> write : getWrites().entrySet()) {
+				commands.add(new W(arg1 + "," + write.getKey() + ","
+						+ write.getValue()));
+			}
+			return commands;
+		}
+
+		@Override
+		public String toString() {
+			return "RW(" + arg1 + ", " + arg2 + ", " + arg3 + ")";
+		}
+
+	}
+
+	/**
+	 * RSCAN(T1, x2, x8) says that T1 reads all variables from x2 to x8, both
+	 * included. Under two phase locking each site is scanned once in variable
+	 * order and the read locks of the range are acquired per site in one
+	 * call.
+	 * 
+	 */
+	public static class RScan extends TransactionCommand {
+
+		public RScan(String param) {
+			super(param);
+		}
+
+		/**
+		 * @return index of first variable of range, at least 1
+		 */
+		public int getFrom() {
+			return Math.max(1, Integer.parseInt(arg2.trim().substring(1)));
+		}
+
+		/**
+		 * @return index of last variable of range, at most
+		 *         {@link DM#VAR_COUNT}
+		 */
+		public int getTo() {
+			return Math.min(DM.VAR_COUNT,
+					Integer.parseInt(arg3.trim().substring(1)));
+		}
+
+		/**
+		 * Splits scan into single reads, for protocols that don't lock
+		 * 
+		 * @return read commands in variable order
+		 */
+		public List<Command> expand() {
+			List<Command> commands = new ArrayList<Command>();
+			for (int i = getFrom(); i <= getTo(); i++) {
+				commands.add(new R(arg1 + ",x" + i));
+			}
+			return commands;
+		}
+
+		@Override
+		public String toString() {
+			return "RSCAN(" + arg1 + ", " + arg2 + ", " + arg3 + ")";
+		}
+
+	}
+
+	/**
+	 * VIEW(V1, SUM, [x1,x2,x4]) registers view V1 as the sum of x1, x2 and
+	 * x4. COUNT, MIN and MAX are also supported.
+	 * 
+	 */
+	public static class View extends Command {
+
+		public View(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			Views.Function function;
+			try {
+				function = Views.Function.valueOf(arg2.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				Log.warning("Unknown aggregate " + arg2 + " of view " + arg1);
+				return false;
+			}
+			List<String> variables = new ArrayList<String>();
+			for (String var : parseList(arg3)) {
+				if (DM.instance().hasVariable(var)) {
+					variables.add(var);
+				} else {
+					Log.warning("Unknown variable " + var + " in view " + arg1);
+				}
+			}
+			try {
+				Log.print_view(TM.instance().views()
+						.register(arg1, function, variables));
+			} catch (IllegalArgumentException e) {
+				Log.warning(e.getMessage());
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "VIEW(" + arg1 + ", " + arg2 + ", " + arg3 + ")";
+		}
+
+	}
+
+	/**
+	 * RV(T1, V1) says that read-only transaction T1 reads view V1 as of its
+	 * begin time.
+	 * 
+	 */
+	public static class RV extends TransactionCommand {
+
+		public RV(String param) {
+			super(param);
+		}
+
+		@Override
+		public String toString() {
+			return "RV(" + arg1 + ", " + arg2 + ")";
+		}
+
+	}
+
+	/**
+	 * Dump() shows all sites, Dump(xi) one variable and Dump(i) one site,
+	 * Dump(export, file) writes committed values of all sites to a columnar
+	 * file in the background, see {@link SnapshotExport}.
+	 *
+	 */
 	public static class Dump extends Command {
 
 		public Dump(String param) {
@@ -199,6 +423,9 @@ public class CommandFactory {
 		public boolean execute() throws RuntimeException {
 			if (arg1 == null) {
 				dumpAll();
+			} else if ("export".equalsIgnoreCase(arg1) && arg2 != null) {
+				// written in background, logged when done
+				SnapshotExport.start(arg2);
 			} else if (arg1.startsWith("x")) {
 				dumpVar(arg1);
 			} else {
@@ -237,6 +464,89 @@ public class CommandFactory {
 		}
 	}
 
+	/**
+	 * Memory() shows estimated heap bytes used by each site and each active
+	 * transaction, Memory(site) and Memory(T1) by one of them only
+	 *
+	 */
+	public static class Memory extends Command {
+
+		public Memory(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			long total = 0;
+			for (Site site : DM.instance()) {
+				if (arg1 == null || arg1.equals(site.getIndex())) {
+					long bytes = site.memoryUsage();
+					Log.print("Site " + site.getIndex() + " memory=" + bytes
+							+ " bytes, copies=" + site.copyCount());
+					total += bytes;
+				}
+			}
+			List<Transaction> transactions = TM.instance().getTransactions();
+			Collections.sort(transactions, new Comparator<Transaction>() {
+
+				@Override
+				public int compare(Transaction t1, Transaction t2) {
+					return t1.getId().compareTo(t2.getId());
+				}
+			});
+			for (Transaction t : transactions) {
+				if (arg1 == null || arg1.equals(t.getId())) {
+					long bytes = t.memoryUsage();
+					Log.print("Transaction " + t.getId() + " memory=" + bytes
+							+ " bytes, variables=" + t.getVariables().size());
+					total += bytes;
+				}
+			}
+			if (arg1 == null) {
+				Log.print("Total memory=" + total + " bytes");
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * Contention() shows variables with most lock events, Contention(n)
+	 * samples one event in n, Contention(off) stops and Contention(reset)
+	 * clears the profile.
+	 *
+	 */
+	public static class ContentionProfile extends Command {
+
+		public ContentionProfile(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			Contention profile = Contention.instance();
+			if ("off".equalsIgnoreCase(arg1)) {
+				profile.setSample(0);
+			} else if ("reset".equalsIgnoreCase(arg1)) {
+				profile.reset();
+			} else if (arg1 != null) {
+				try {
+					profile.setSample(Integer.parseInt(arg1.trim()));
+				} catch (NumberFormatException e) {
+					Log.warning("Unrecognized contention option: " + arg1);
+				}
+			} else {
+				Log.print("Contention profile, " + profile.total()
+						+ " events, sampled 1 in " + profile.getSample());
+				for (Contention.Counter counter : profile.top()) {
+					Log.print(counter.toString());
+				}
+			}
+			return true;
+		}
+
+	}
+
 	public static class Abort extends End {
 
 		public Abort(String param) {
@@ -245,14 +555,18 @@ public class CommandFactory {
 
 		@Override
 		public boolean execute() throws RuntimeException {
+			long start = System.nanoTime();
 			// transaction Id
 			String transId = arg1;
+			Transaction t = TM.instance().getTransaction(transId);
 			// abort and roll back
 			abort(transId);
 			// release all locks
 			releaseLocks(transId);
 			// destroy transaction by id
 			destroyTransaction(transId);
+			Timeline.finish(t, false);
+			Metrics.instance().recordAbort(System.nanoTime() - start);
 			return true;
 		}
 
@@ -266,26 +580,46 @@ public class CommandFactory {
 
 		@Override
 		public boolean execute() throws RuntimeException {
+			long start = System.nanoTime();
 			// transaction Id
 			String transId = arg1;
 			Transaction t = TM.instance().getTransaction(transId);
+			if (t.state == STATUS.COMPLETED) {
+				Log.warning("Transaction " + transId
+						+ " already ended, command ignored");
+				return true;
+			}
 			// check if transaction can commit
 			boolean commitable = t.commitable();
 			// check if timeout
 			boolean isTimeout = TM.instance().checkTimeout(transId);
-			if (commitable && !isTimeout) {
-				commit(t);
-			} else {
-				// abort and roll back
-				abort(transId);
+			boolean validated = commitable && !isTimeout
+					&& TM.instance().validate(t);
+			boolean prepared = validated
+					&& TM.instance().coordinator().prepare(t);
+			if (prepared) {
+				t.end();
+				// committed with its group, which releases its locks
+				TM.instance().groupCommit().add(t, start);
+				return true;
+			}
+			// abort and roll back
+			abort(transId);
+			if (!commitable || isTimeout) {
 				Log.print("Site failed: " + !commitable + " Timeout: "
 						+ isTimeout);
+			} else if (!validated) {
+				Log.print("Validation failed");
+			} else {
+				Log.print("Participant voted NO");
 			}
 			// release all locks
 			releaseLocks(transId);
 			// destroy transaction by id
 			destroyTransaction(transId);
 			Log.print_end(transId, commitable);
+			Timeline.finish(t, false);
+			Metrics.instance().recordAbort(System.nanoTime() - start);
 			return true;
 		}
 
@@ -302,18 +636,6 @@ public class CommandFactory {
 			Log.print_abort(transId);
 		}
 
-		private void commit(Transaction t) {
-			Iterator<Site> sites = DM.instance().iterator();
-			while (sites.hasNext()) {
-				Site site = sites.next();
-				if (!site.isRunning()) {
-					continue;
-				}
-				site.commit(t);
-			}
-			Log.print_commit(t);
-		}
-
 		protected void destroyTransaction(String transId) {
 			TM.instance().removeTransaction(transId);
 		}
@@ -331,6 +653,38 @@ public class CommandFactory {
 
 	}
 
+	/**
+	 * Trace(on) and Trace(off) switch transaction tracing, Trace(export,
+	 * file) writes finished transactions to a Chrome trace file.
+	 *
+	 */
+	public static class Trace extends Command {
+
+		public Trace(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			if ("on".equalsIgnoreCase(arg1)) {
+				Timeline.setEnabled(true);
+			} else if ("off".equalsIgnoreCase(arg1)) {
+				Timeline.setEnabled(false);
+			} else if ("export".equalsIgnoreCase(arg1) && arg2 != null) {
+				try {
+					Timeline.export(arg2);
+				} catch (IOException e) {
+					Log.warning("Cannot export trace to " + arg2 + ": "
+							+ e.getMessage());
+				}
+			} else {
+				Log.warning("Unrecognized trace option: " + arg1);
+			}
+			return true;
+		}
+
+	}
+
 	public static class Fail extends Command {
 
 		public Fail(String param) {
@@ -361,4 +715,22 @@ public class CommandFactory {
 
 	}
 
+	/**
+	 * Restart() restarts transaction manager from its log
+	 *
+	 */
+	public static class Restart extends Command {
+
+		public Restart(String param) {
+			super(param);
+		}
+
+		@Override
+		public boolean execute() throws RuntimeException {
+			TM.restart();
+			return true;
+		}
+
+	}
+
 }
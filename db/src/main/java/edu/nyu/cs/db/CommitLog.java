@@ -0,0 +1,244 @@
+package edu.nyu.cs.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.nyu.cs.db.MainClass.Clock;
+
+/**
+ * Log of transaction manager.
+ * <p>
+ * Three kinds of records are appended:
+ * <ul>
+ * <li><code>begin T1 beginTime</code> when a read-write transaction begins</li>
+ * <li><code>commit T1 tick commitTime</code> when it is decided to commit</li>
+ * <li><code>end T1</code> when it aborted, or when all participants applied
+ * its commit</li>
+ * </ul>
+ * Commit decisions are made durable by {@link #flush()}, which forces the
+ * file to disk. Every <code>db.tm.snapshot</code> records the begin and
+ * commit records of transactions not ended yet are written to a snapshot
+ * file and the log is truncated, so that {@link #recover()} reads the
+ * active transactions plus at most one interval of records, whatever the
+ * length of the history.
+ * <p>
+ * The log is written to <code>db.commit.log</code> and its snapshot to the
+ * same path with suffix <code>.snapshot</code>. The database itself is kept
+ * in memory, so a new process starts a new log. If no path is given, records
+ * are kept in memory, which survives a restart of the transaction manager
+ * within the process.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class CommitLog {
+
+	public static final String BEGIN = "begin";
+
+	public static final String COMMIT = "commit";
+
+	public static final String END = "end";
+
+	private final int interval = Math.max(1,
+			Config.getInt(Config.TM_SNAPSHOT, 1000));
+
+	private String path = null;
+
+	private Writer out = null;
+
+	private FileChannel channel = null;
+
+	// <K,V>=<transaction id, last record>, of transactions not ended
+	private final Map<String, String> live = new LinkedHashMap<String, String>();
+
+	// records since last snapshot
+	private int appended = 0;
+
+	// log and snapshot, if kept in memory
+	private final List<String> records = new ArrayList<String>();
+
+	private final List<String> snapshot = new ArrayList<String>();
+
+	public CommitLog() {
+		String path = Config.getString(Config.COMMIT_LOG, null);
+		if (path == null) {
+			return;
+		}
+		try {
+			FileOutputStream file = new FileOutputStream(path);
+			channel = file.getChannel();
+			out = new BufferedWriter(new OutputStreamWriter(file), 1 << 16);
+			new File(path + ".snapshot").delete();
+			this.path = path;
+		} catch (IOException e) {
+			Log.warning("Cannot open commit log " + path + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Appends begin of a read-write transaction
+	 *
+	 * @param t
+	 *            transaction
+	 */
+	public void begin(Transaction t) {
+		write(t.getId(), BEGIN + " " + t.getId() + " " + t.beginTime);
+	}
+
+	/**
+	 * Appends commit decision, not durable until next flush
+	 *
+	 * @param t
+	 *            committed transaction
+	 */
+	public void append(Transaction t) {
+		write(t.getId(), COMMIT + " " + t.getId() + " " + Clock.showTime()
+				+ " " + t.commitTime);
+	}
+
+	/**
+	 * Appends end of a transaction, which is then forgotten
+	 *
+	 * @param transId
+	 *            transaction id
+	 */
+	public void end(String transId) {
+		if (live.containsKey(transId)) {
+			write(transId, END + " " + transId);
+		}
+	}
+
+	private void write(String transId, String record) {
+		if (record.startsWith(END)) {
+			live.remove(transId);
+		} else {
+			live.put(transId, record);
+		}
+		appended++;
+		if (out == null) {
+			records.add(record);
+		} else {
+			try {
+				out.write(record + "\n");
+			} catch (IOException e) {
+				Log.warning("Cannot write commit log: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Forces appended records to disk
+	 */
+	public void flush() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.flush();
+			channel.force(false);
+		} catch (IOException e) {
+			Log.warning("Cannot flush commit log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a snapshot and truncates the log once an interval of records
+	 * was appended since the last one
+	 */
+	public void checkpoint() {
+		if (appended < interval) {
+			return;
+		}
+		appended = 0;
+		if (out == null) {
+			snapshot.clear();
+			snapshot.addAll(live.values());
+			records.clear();
+			return;
+		}
+		File tmp = new File(path + ".snapshot.tmp");
+		try {
+			FileOutputStream file = new FileOutputStream(tmp);
+			Writer writer = new BufferedWriter(new OutputStreamWriter(file));
+			for (String record : live.values()) {
+				writer.write(record + "\n");
+			}
+			writer.flush();
+			file.getChannel().force(false);
+			writer.close();
+			if (!tmp.renameTo(new File(path + ".snapshot"))) {
+				Log.warning("Cannot replace snapshot of " + path);
+				return;
+			}
+			// records before snapshot are no longer needed
+			out.flush();
+			channel.truncate(0);
+			channel.force(false);
+		} catch (IOException e) {
+			Log.warning("Cannot write snapshot of " + path + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads snapshot and log back
+	 *
+	 * @return <K,V>=<transaction id, fields of its last record>, of
+	 *         transactions not ended, in order of their first record
+	 */
+	public Map<String, String[]> recover() {
+		List<String> lines = new ArrayList<String>();
+		if (out == null) {
+			lines.addAll(snapshot);
+			lines.addAll(records);
+		} else {
+			// records written before restart are read from the files
+			try {
+				out.flush();
+				read(new File(path + ".snapshot"), lines);
+				read(new File(path), lines);
+			} catch (IOException e) {
+				Log.warning("Cannot read commit log: " + e.getMessage());
+			}
+		}
+		Map<String, String[]> active = new LinkedHashMap<String, String[]>();
+		for (String line : lines) {
+			String[] fields = line.split(" ");
+			if (fields[0].equals(END)) {
+				active.remove(fields[1]);
+			} else {
+				active.put(fields[1], fields);
+			}
+		}
+		return active;
+	}
+
+	private static void read(File file, List<String> lines) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty()) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
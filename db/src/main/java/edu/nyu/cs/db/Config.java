@@ -0,0 +1,152 @@
+package edu.nyu.cs.db;
+
+/**
+ * Runtime configuration.
+ * <p>
+ * Options are read from system properties, e.g.
+ * <code>java -Ddb.log.verbosity=audit -jar db.jar input.txt</code>. Any
+ * option not given falls back to its default value.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Config {
+
+	// per-operation output level, see Log.Verbosity
+	public static final String LOG_VERBOSITY = "db.log.verbosity";
+
+	// write log through background writer thread
+	public static final String LOG_ASYNC = "db.log.async";
+
+	// ring buffer capacity of background writer, in events
+	public static final String LOG_BUFFER = "db.log.buffer";
+
+	// output file of log, standard output if not given
+	public static final String LOG_FILE = "db.log.file";
+
+	// register metrics over JMX
+	public static final String METRICS_JMX = "db.metrics.jmx";
+
+	// seconds between two metrics snapshots in the log, 0 for none
+	public static final String METRICS_INTERVAL = "db.metrics.interval";
+
+	// record transaction timelines from start
+	public static final String TRACE = "db.trace";
+
+	// number of finished transactions kept for trace export
+	public static final String TRACE_CAPACITY = "db.trace.capacity";
+
+	// file the trace is exported to when program ends
+	public static final String TRACE_FILE = "db.trace.file";
+
+	// concurrency control of read-write transactions, see Protocol
+	public static final String PROTOCOL = "db.protocol";
+
+	// threads executing non-conflicting transactions in parallel
+	public static final String WORKERS = "db.workers";
+
+	// ticks per batch of deterministic execution
+	public static final String SEQUENCER_BATCH = "db.sequencer.batch";
+
+	// file batches of deterministic execution are logged to
+	public static final String SEQUENCER_LOG = "db.sequencer.log";
+
+	// send two-phase commit prepare to participants in parallel
+	public static final String PARALLEL_PREPARE = "db.2pc.parallel";
+
+	// transactions committed together with one log flush
+	public static final String COMMIT_GROUP_SIZE = "db.commit.group.size";
+
+	// ticks a commit group stays open, 0 closes it at the end of the tick
+	public static final String COMMIT_GROUP_TICKS = "db.commit.group.ticks";
+
+	// file transaction manager log is forced to, kept in memory if not given
+	public static final String COMMIT_LOG = "db.commit.log";
+
+	// active read-write transactions, 0 for no limit
+	public static final String ADMISSION_MAX = "db.admission.max";
+
+	// timestamps a thread takes from the oracle at once
+	public static final String TIMESTAMP_RANGE = "db.timestamp.range";
+
+	// committed values cached for read-only transactions, 0 for none
+	public static final String CACHE_SIZE = "db.cache.size";
+
+	// consecutive variables per range granule of lock table
+	public static final String LOCK_RANGE = "db.lock.range";
+
+	// variable locks of a transaction at a site before escalation, 0 for
+	// no escalation
+	public static final String LOCK_ESCALATION = "db.lock.escalation";
+
+	// number of variables x1 to xN, copies are created on first write
+	public static final String VARIABLES = "db.variables";
+
+	// records of transaction manager log between snapshots
+	public static final String TM_SNAPSHOT = "db.tm.snapshot";
+
+	// keep one lock event in given number for contention profile, 0 for off
+	public static final String PROFILE_SAMPLE = "db.profile.sample";
+
+	// variables kept by contention profile
+	public static final String PROFILE_TOP_K = "db.profile.topk";
+
+	private Config() {
+	}
+
+	/**
+	 * Reads string option
+	 *
+	 * @param key
+	 *            option name
+	 * @param defaultValue
+	 *            value used if option is not given
+	 * @return option value
+	 */
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Reads integer option
+	 *
+	 * @param key
+	 *            option name
+	 * @param defaultValue
+	 *            value used if option is not given or malformed
+	 * @return option value
+	 */
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			Log.warning("Illegal value of " + key + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads boolean option
+	 *
+	 * @param key
+	 *            option name
+	 * @param defaultValue
+	 *            value used if option is not given
+	 * @return option value
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,88 @@
+package edu.nyu.cs.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Conservative two phase locking.
+ * <p>
+ * A read-write transaction that declares its read and write sets at begin
+ * acquires all its locks at once, before it runs any operation: a read lock
+ * at the first readable copy of each variable read, a write lock at every
+ * running copy of each variable written. Requests are checked at all sites
+ * in global variable order and granted only if none is denied; otherwise
+ * nothing is locked and the transaction waits, with its commands queued,
+ * until a variable it waits on is released. Once admitted it holds every
+ * lock it needs and never waits, unless a site holding one of its locks
+ * fails; a lock requested again then follows wait-die.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class ConservativeLocking {
+
+	/**
+	 * Acquires all declared locks of transaction, all or none
+	 *
+	 * @param t
+	 *            transaction with declared read and write sets
+	 * @return variables that cannot be locked yet, empty if transaction is
+	 *         admitted
+	 */
+	public Set<String> admit(Transaction t) {
+		Set<String> denied = new TreeSet<String>(Utility.VARIABLE_ORDER);
+		// <K,V>=<site, <variable, lock>>, in site order
+		Map<Site, Map<String, String>> requests = new LinkedHashMap<Site, Map<String, String>>();
+		for (String var : t.getDeclaredReads()) {
+			if (t.getDeclaredWrites().contains(var)) {
+				// write lock covers read
+				continue;
+			}
+			Site site = DM.instance().readableCopy(var);
+			if (site == null) {
+				denied.add(var);
+			} else {
+				request(requests, site).put(var, LockTable.READ);
+			}
+		}
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning()) {
+				continue;
+			}
+			for (String var : t.getDeclaredWrites()) {
+				if (site.hasVariable(var)) {
+					request(requests, site).put(var, LockTable.WRITE);
+				}
+			}
+		}
+		for (Map.Entry<Site, Map<String, String>> entry : requests.entrySet()) {
+			denied.addAll(entry.getKey().deniedLocks(t.getId(),
+					entry.getValue()));
+		}
+		if (!denied.isEmpty()) {
+			t.setAdmitted(false);
+			return denied;
+		}
+		for (Map.Entry<Site, Map<String, String>> entry : requests.entrySet()) {
+			entry.getKey().grantAll(t.getId(), entry.getValue());
+		}
+		t.setAdmitted(true);
+		return denied;
+	}
+
+	private static Map<String, String> request(
+			Map<Site, Map<String, String>> requests, Site site) {
+		Map<String, String> locks = requests.get(site);
+		if (locks == null) {
+			locks = new TreeMap<String, String>(Utility.VARIABLE_ORDER);
+			requests.put(site, locks);
+		}
+		return locks;
+	}
+}
@@ -0,0 +1,228 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampling profiler of hot variables and lock contention.
+ * <p>
+ * Lock tables record each lock request and denial with the site they
+ * belong to; transaction manager records each wait and wait-die abort,
+ * which are not tied to a site. One event in
+ * <code>db.profile.sample</code> is kept and weighted by the sampling rate,
+ * 0 disables profiling.
+ * <p>
+ * Kept events are counted per variable in a Space-Saving sketch of
+ * <code>db.profile.topk</code> counters: a new variable takes the counter
+ * with the lowest count and inherits that count as its error bound. Memory
+ * stays bounded whatever the number of variables, and every variable whose
+ * count exceeds the total divided by the number of counters is kept. Each
+ * counter breaks its events down by site.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Contention {
+
+	public static enum Event {
+		REQUEST, DENIAL, WAIT, ABORT
+	}
+
+	// site of events recorded by transaction manager
+	public static final int ALL_SITES = 0;
+
+	private static Contention instance = new Contention();
+
+	private volatile int sample = Math.max(0,
+			Config.getInt(Config.PROFILE_SAMPLE, 0));
+
+	private final int capacity = Math.max(1,
+			Config.getInt(Config.PROFILE_TOP_K, 20));
+
+	private final AtomicLong events = new AtomicLong();
+
+	// <K,V>=<variable index, counter>, at most capacity entries
+	private final Map<Integer, Counter> counters = new HashMap<Integer, Counter>();
+
+	// weight of kept events
+	private long total = 0;
+
+	public static Contention instance() {
+		return instance;
+	}
+
+	/**
+	 * Records an event on a variable, if sampled
+	 *
+	 * @param site
+	 *            site index, or {@link #ALL_SITES}
+	 * @param var
+	 *            variable name
+	 * @param event
+	 *            event type
+	 */
+	public void record(int site, String var, Event event) {
+		int rate = sample;
+		if (rate == 0 || events.incrementAndGet() % rate != 0) {
+			return;
+		}
+		add(site, Utility.index(var), event, rate);
+	}
+
+	private synchronized void add(int site, int variable, Event event,
+			int weight) {
+		Counter counter = counters.get(variable);
+		if (counter == null) {
+			long error = 0;
+			if (counters.size() >= capacity) {
+				// replace counter with lowest count
+				Counter min = null;
+				for (Counter c : counters.values()) {
+					if (min == null || c.count < min.count) {
+						min = c;
+					}
+				}
+				counters.remove(min.variable);
+				error = min.count;
+			}
+			counter = new Counter(variable, error);
+			counters.put(variable, counter);
+		}
+		counter.count += weight;
+		counter.events[site][event.ordinal()] += weight;
+		total += weight;
+	}
+
+	/**
+	 * @return counters of sketch, highest count first
+	 */
+	public synchronized List<Counter> top() {
+		List<Counter> result = new ArrayList<Counter>();
+		for (Counter counter : counters.values()) {
+			result.add(counter.copy());
+		}
+		Collections.sort(result, new Comparator<Counter>() {
+
+			@Override
+			public int compare(Counter c1, Counter c2) {
+				return c1.count == c2.count ? 0 : c1.count > c2.count ? -1
+						: 1;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return estimated number of events counted
+	 */
+	public synchronized long total() {
+		return total;
+	}
+
+	/**
+	 * @return sampling rate, 0 if disabled
+	 */
+	public int getSample() {
+		return sample;
+	}
+
+	/**
+	 * @param sample
+	 *            keep one event in given number, 0 disables profiling
+	 */
+	public void setSample(int sample) {
+		this.sample = Math.max(0, sample);
+	}
+
+	public synchronized void reset() {
+		counters.clear();
+		total = 0;
+	}
+
+	/**
+	 * Estimated events of one variable, by site.
+	 */
+	public static class Counter {
+
+		public final int variable;
+
+		// overestimate bound inherited from replaced counter
+		public final long error;
+
+		private long count;
+
+		// events by site, transaction manager's at ALL_SITES
+		private final long[][] events = new long[DM.SITE_COUNT + 1][Event
+				.values().length];
+
+		Counter(int variable, long error) {
+			this.variable = variable;
+			this.error = error;
+			this.count = error;
+		}
+
+		private Counter copy() {
+			Counter copy = new Counter(variable, error);
+			copy.count = count;
+			for (int i = 0; i < events.length; i++) {
+				System.arraycopy(events[i], 0, copy.events[i], 0,
+						events[i].length);
+			}
+			return copy;
+		}
+
+		/**
+		 * @return estimated events, at most {@link #error} too high
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @param event
+		 *            event type
+		 * @return estimated events of type at all sites since counter was
+		 *         taken
+		 */
+		public long get(Event event) {
+			long sum = 0;
+			for (long[] site : events) {
+				sum += site[event.ordinal()];
+			}
+			return sum;
+		}
+
+		/**
+		 * @param site
+		 *            site index
+		 * @param event
+		 *            event type
+		 * @return estimated events of type at site since counter was taken
+		 */
+		public long get(int site, Event event) {
+			return events[site][event.ordinal()];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("x" + variable + ": requests="
+					+ get(Event.REQUEST) + " denials=" + get(Event.DENIAL)
+					+ " waits=" + get(Event.WAIT) + " aborts="
+					+ get(Event.ABORT) + " error<=" + error);
+			for (int site = 1; site < events.length; site++) {
+				if (get(site, Event.REQUEST) > 0
+						|| get(site, Event.DENIAL) > 0) {
+					sb.append("\n  site " + site + ": requests="
+							+ get(site, Event.REQUEST) + " denials="
+							+ get(site, Event.DENIAL));
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
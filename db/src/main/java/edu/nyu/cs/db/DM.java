@@ -12,7 +12,8 @@ public class DM implements Iterable<Site> {
 
 	public static final int SITE_COUNT = 10;
 
-	public static final int VAR_COUNT = 20;
+	public static final int VAR_COUNT = Math.max(1, Config.getInt(
+			Config.VARIABLES, 20));
 
 	private Site[] sites;
 
@@ -25,7 +26,7 @@ public class DM implements Iterable<Site> {
 	/**
 	 * Default Constructor.
 	 * <p>
-	 * Initialize sites and variables
+	 * Initialize sites, their variables are created on first write
 	 */
 	private DM() {
 		// initialize sites
@@ -64,4 +65,51 @@ public class DM implements Iterable<Site> {
 		// TODO
 		return this.sites[siteId];
 	}
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return true if some site holds a copy of variable
+	 */
+	public boolean hasVariable(String var) {
+		for (Site site : this) {
+			if (site.hasVariable(var)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds first running site with a copy of variable ready for reading
+	 * 
+	 * @param var
+	 *            variable name
+	 * @return site, or null if no copy is available
+	 */
+	public Site readableCopy(String var) {
+		for (Site site : this) {
+			if (site.isRunning() && site.isInitialized(var)) {
+				return site;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds first running site with a committed copy of variable, as read by
+	 * read-only transactions
+	 * 
+	 * @param var
+	 *            variable name
+	 * @return site, or null if no copy is available
+	 */
+	public Site committedCopy(String var) {
+		for (Site site : this) {
+			if (site.isRunning() && site.isCommitted(var)) {
+				return site;
+			}
+		}
+		return null;
+	}
 }
@@ -0,0 +1,569 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.nyu.cs.db.CommandFactory.Begin;
+import edu.nyu.cs.db.CommandFactory.BeginRO;
+import edu.nyu.cs.db.CommandFactory.End;
+import edu.nyu.cs.db.CommandFactory.R;
+import edu.nyu.cs.db.CommandFactory.RScan;
+import edu.nyu.cs.db.CommandFactory.RV;
+import edu.nyu.cs.db.CommandFactory.RW;
+import edu.nyu.cs.db.CommandFactory.W;
+
+/**
+ * Deterministic batch-sequenced execution.
+ * <p>
+ * Read-write transactions declare their read and write sets at begin, e.g.
+ * <code>Begin(T1, [x1,x2], [x3])</code>. The {@link Sequencer} orders them
+ * into batches, and each batch requests all of its locks in sequence order
+ * from per-variable queues. A transaction is granted once it is first in the
+ * queue of every variable it writes and behind readers only on the variables
+ * it reads. No transaction ever waits for a younger one, so there are no
+ * deadlocks and no wait-die aborts.
+ * <p>
+ * Commands of a transaction wait in its own queue until it is granted. Reads
+ * and writes of granted transactions never conflict, so consecutive ones are
+ * executed in parallel on <code>db.workers</code> threads, commands of one
+ * transaction in order. Begin, End, Fail, Recover and Dump are barriers and
+ * run alone in input order, and the output of each transaction is held back
+ * and written in sequence order, which keeps the result independent of
+ * thread timing.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class DeterministicEngine {
+
+	private final Sequencer sequencer = new Sequencer();
+
+	// <K,V>=<transaction id, state>
+	private final Map<String, State> states = new HashMap<String, State>();
+
+	// <K,V>=<variable id, lock requests in sequence order>
+	private final Map<String, LinkedList<Request>> queues = new HashMap<String, LinkedList<Request>>();
+
+	// granted transactions with waiting commands, by sequence
+	private final TreeSet<State> ready = new TreeSet<State>();
+
+	// reads and writes to execute in parallel, by transaction
+	private final Map<State, List<Command>> stage = new LinkedHashMap<State, List<Command>>();
+
+	private final int workers;
+
+	private ExecutorService pool = null;
+
+	private long sequence = 0;
+
+	private long tick = 0;
+
+	public DeterministicEngine() {
+		this.workers = Math.max(1, Config.getInt(Config.WORKERS, Runtime
+				.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Processes co-temporous commands of one tick
+	 *
+	 * @param commands
+	 *            commands in input order
+	 */
+	public void process(Command[] commands) {
+		tick++;
+		for (Command command : commands) {
+			submit(command);
+		}
+		flushStage();
+		// sequence and lock closed batch
+		for (Transaction t : sequencer.tick()) {
+			State state = states.get(t.getId());
+			if (state != null) {
+				request(state);
+			}
+		}
+		drain();
+	}
+
+	private void submit(Command command) {
+		if (command instanceof RW) {
+			for (Command single : ((RW) command).expand()) {
+				submit(single);
+			}
+			return;
+		}
+		if (command instanceof RScan) {
+			for (Command single : ((RScan) command).expand()) {
+				submit(single);
+			}
+			return;
+		}
+		if (!command.isTransRequired()) {
+			flushStage();
+			if (command instanceof Begin) {
+				begin((Begin) command);
+			} else if (command instanceof BeginRO) {
+				command.execute();
+				State state = new State(TM.instance().getTransaction(
+						command.arg1), sequence++);
+				state.granted = true;
+				states.put(state.t.getId(), state);
+			} else {
+				command.execute();
+			}
+			return;
+		}
+		State state = states.get(command.arg1);
+		if (state == null) {
+			Log.warning("Transaction " + command.arg1 + " does not exist");
+			return;
+		}
+		if (!declares(state, command)) {
+			flushStage();
+			abort(state, "access to undeclared variable " + command.arg2);
+			return;
+		}
+		if (!state.granted || !state.pending.isEmpty()) {
+			// wait for locks or for earlier commands
+			state.pending.add(command);
+			return;
+		}
+		if (command instanceof End) {
+			flushStage();
+			if (state.pending.isEmpty()) {
+				end(state, command);
+			} else {
+				// a read of current transaction found no available copy
+				state.pending.add(command);
+			}
+			return;
+		}
+		stage(state, command);
+	}
+
+	private void begin(Begin begin) {
+		if (!begin.isDeclared()) {
+			Log.warning("Transaction " + begin.arg1
+					+ " must declare its read and write sets");
+			return;
+		}
+		List<String> declared = Command.parseList(begin.arg2);
+		declared.addAll(Command.parseList(begin.arg3));
+		for (String var : declared) {
+			if (!DM.instance().hasVariable(var)) {
+				Log.warning("Transaction " + begin.arg1
+						+ " declares unknown variable " + var);
+				return;
+			}
+		}
+		begin.execute();
+		Transaction t = TM.instance().getTransaction(begin.arg1);
+		State state = new State(t, sequence++);
+		states.put(t.getId(), state);
+		sequencer.add(t);
+	}
+
+	private static boolean declares(State state, Command command) {
+		Transaction t = state.t;
+		if (t.isReadOnly() || command instanceof End) {
+			return true;
+		}
+		if (command instanceof W) {
+			return t.getDeclaredWrites().contains(command.arg2);
+		}
+		return t.getDeclaredReads().contains(command.arg2)
+				|| t.getDeclaredWrites().contains(command.arg2);
+	}
+
+	/**
+	 * Enqueues lock requests of a transaction in global variable order
+	 */
+	private void request(State state) {
+		List<String> vars = new ArrayList<String>(state.t.getDeclaredReads());
+		for (String var : state.t.getDeclaredWrites()) {
+			if (!vars.contains(var)) {
+				vars.add(var);
+			}
+		}
+		Collections.sort(vars, Utility.VARIABLE_ORDER);
+		state.waiting = vars.size();
+		for (String var : vars) {
+			LinkedList<Request> queue = queues.get(var);
+			if (queue == null) {
+				queue = new LinkedList<Request>();
+				queues.put(var, queue);
+			}
+			boolean write = state.t.getDeclaredWrites().contains(var);
+			queue.add(new Request(state, write));
+			state.variables.add(var);
+		}
+		if (state.waiting == 0) {
+			grant(state);
+		}
+		for (String var : vars) {
+			grantQueue(queues.get(var));
+		}
+	}
+
+	/**
+	 * Grants the head of a queue, and the readers directly behind a granted
+	 * reader
+	 */
+	private void grantQueue(LinkedList<Request> queue) {
+		boolean readersOnly = true;
+		boolean first = true;
+		for (Request request : queue) {
+			if (!first && (request.write || !readersOnly)) {
+				return;
+			}
+			if (!request.granted) {
+				request.granted = true;
+				if (--request.state.waiting == 0) {
+					grant(request.state);
+				}
+			}
+			readersOnly = readersOnly && !request.write;
+			first = false;
+		}
+	}
+
+	private void grant(State state) {
+		state.granted = true;
+		Timeline.record(state.t, Timeline.GRANT, -1, null);
+		if (!state.pending.isEmpty()) {
+			ready.add(state);
+		}
+	}
+
+	private void release(State state) {
+		states.remove(state.t.getId());
+		ready.remove(state);
+		for (String var : state.variables) {
+			LinkedList<Request> queue = queues.get(var);
+			Iterator<Request> it = queue.iterator();
+			while (it.hasNext()) {
+				if (it.next().state == state) {
+					it.remove();
+				}
+			}
+			if (queue.isEmpty()) {
+				queues.remove(var);
+			} else {
+				grantQueue(queue);
+			}
+		}
+	}
+
+	/**
+	 * Runs waiting commands of granted transactions until no more progress
+	 * is possible in current tick
+	 */
+	private void drain() {
+		// retry transactions blocked in earlier ticks
+		for (State state : states.values()) {
+			if (state.granted && !state.pending.isEmpty()) {
+				ready.add(state);
+			}
+		}
+		while (!ready.isEmpty()) {
+			List<State> ends = new ArrayList<State>();
+			for (State state : new ArrayList<State>(ready)) {
+				ready.remove(state);
+				if (state.blockedAt == tick) {
+					continue;
+				}
+				while (!state.pending.isEmpty()
+						&& !(state.pending.peek() instanceof End)) {
+					stage(state, state.pending.poll());
+				}
+				if (!state.pending.isEmpty()) {
+					ends.add(state);
+				}
+			}
+			flushStage();
+			for (State state : ends) {
+				if (state.pending.peek() instanceof End) {
+					end(state, state.pending.poll());
+				}
+			}
+		}
+	}
+
+	private void end(State state, Command end) {
+		end.execute();
+		release(state);
+	}
+
+	private void abort(State state, String reason) {
+		CommandFactory.parse("Abort(" + state.t.getId() + ")").execute();
+		Log.abort(state.t, reason);
+		release(state);
+	}
+
+	private void stage(State state, Command command) {
+		List<Command> commands = stage.get(state);
+		if (commands == null) {
+			commands = new ArrayList<Command>();
+			stage.put(state, commands);
+		}
+		commands.add(command);
+	}
+
+	/**
+	 * Executes staged reads and writes, one task per transaction
+	 */
+	private void flushStage() {
+		if (stage.isEmpty()) {
+			return;
+		}
+		List<State> order = new ArrayList<State>(stage.keySet());
+		List<Execution> tasks = new ArrayList<Execution>();
+		for (Entry<State, List<Command>> entry : stage.entrySet()) {
+			tasks.add(new Execution(entry.getKey(), entry.getValue()));
+		}
+		stage.clear();
+		List<List<Command>> blocked = new ArrayList<List<Command>>();
+		try {
+			if (tasks.size() == 1 || workers == 1) {
+				for (Execution task : tasks) {
+					blocked.add(task.call());
+				}
+			} else {
+				for (Future<List<Command>> future : pool().invokeAll(tasks)) {
+					blocked.add(future.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		// output of transactions in sequence order, not completion order
+		List<Execution> done = new ArrayList<Execution>(tasks);
+		Collections.sort(done);
+		for (Execution task : done) {
+			for (String line : task.output) {
+				Log.print(line);
+			}
+		}
+		// commands not executed wait in front of later ones
+		for (int i = 0; i < order.size(); i++) {
+			List<Command> rest = blocked.get(i);
+			if (!rest.isEmpty()) {
+				State state = order.get(i);
+				state.pending.addAll(0, rest);
+				state.blockedAt = tick;
+				Log.print_wait(state.t);
+				Timeline.record(state.t, Timeline.WAIT, -1, rest.get(0).arg2);
+			}
+		}
+	}
+
+	private synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+
+				private int count = 0;
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "worker-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Reads from first available copy
+	 *
+	 * @return false if no copy is available
+	 */
+	private static boolean read(Transaction t, R read) {
+		String var = read.arg2;
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning() || !site.isInitialized(var)) {
+				continue;
+			}
+			if (t.isReadOnly() && !site.isCommitted(var)) {
+				continue;
+			}
+			if (t.isReadOnly()) {
+				return read.execute(site, true);
+			}
+			int value = site.read(var);
+			site.registerListener(t);
+			Log.print_read(site, var, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads aggregate view, read-only transactions only
+	 *
+	 * @return false if a variable of view has no available copy
+	 */
+	private static boolean readView(Transaction t, RV read) {
+		Views.View view = TM.instance().views().get(read.arg2);
+		if (view == null || !t.isReadOnly()) {
+			Log.warning("View read " + read + " ignored");
+			return true;
+		}
+		Long value = Views.read(view, t);
+		if (value == null) {
+			return false;
+		}
+		Log.print_read_view(view.name, value);
+		return true;
+	}
+
+	/**
+	 * Stages write at all available copies
+	 */
+	private static void write(Transaction t, W write) {
+		String var = write.arg2;
+		int value = Integer.parseInt(write.arg3);
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (site.isRunning() && site.hasVariable(var)) {
+				site.write(t.getId(), var, value);
+				site.registerListener(t);
+				Log.print_write(site, var, value);
+			}
+		}
+		t.addVaraible(var);
+	}
+
+	/**
+	 * Executes commands of one transaction in order.
+	 */
+	private static class Execution implements Callable<List<Command>>,
+			Comparable<Execution> {
+
+		private final State state;
+
+		private final List<Command> commands;
+
+		// messages of commands executed, written once all tasks are done
+		private List<String> output = Collections.emptyList();
+
+		Execution(State state, List<Command> commands) {
+			this.state = state;
+			this.commands = commands;
+		}
+
+		/**
+		 * @return commands not executed because no copy was available
+		 */
+		@Override
+		public List<Command> call() {
+			Log.capture();
+			try {
+				return execute();
+			} finally {
+				output = Log.release();
+			}
+		}
+
+		private List<Command> execute() {
+			for (int i = 0; i < commands.size(); i++) {
+				Command command = commands.get(i);
+				if (command instanceof W) {
+					if (state.t.isReadOnly()) {
+						Log.warning("Write in read-only transaction "
+								+ state.t.getId() + " ignored");
+						continue;
+					}
+					write(state.t, (W) command);
+				} else if (command instanceof R
+						&& !read(state.t, (R) command)
+						|| command instanceof RV
+						&& !readView(state.t, (RV) command)) {
+					return new ArrayList<Command>(commands.subList(i,
+							commands.size()));
+				}
+			}
+			return Collections.emptyList();
+		}
+
+		@Override
+		public int compareTo(Execution other) {
+			return state.compareTo(other.state);
+		}
+	}
+
+	/**
+	 * A lock request on one variable.
+	 */
+	private static class Request {
+
+		private final State state;
+
+		private final boolean write;
+
+		private boolean granted = false;
+
+		Request(State state, boolean write) {
+			this.state = state;
+			this.write = write;
+		}
+	}
+
+	/**
+	 * Scheduling state of one transaction.
+	 */
+	private static class State implements Comparable<State> {
+
+		private final Transaction t;
+
+		private final long sequence;
+
+		// variables with a lock request
+		private final List<String> variables = new ArrayList<String>();
+
+		// commands waiting for locks or for earlier commands
+		private final LinkedList<Command> pending = new LinkedList<Command>();
+
+		// number of lock requests not granted
+		private int waiting = 0;
+
+		private boolean granted = false;
+
+		// tick in which a read found no available copy
+		private long blockedAt = -1;
+
+		State(Transaction t, long sequence) {
+			this.t = t;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(State other) {
+			return sequence < other.sequence ? -1
+					: sequence == other.sequence ? 0 : 1;
+		}
+	}
+}
@@ -42,9 +42,20 @@ public class FileManager {
 
 	public Command[] nextCommands() {
 		assert nextLine != null;
+		return parseLine(nextLine);
+	}
+
+	/**
+	 * Parses co-temporous commands from one input line
+	 *
+	 * @param line
+	 *            input line, commands separated by {@link #DELIMITER}
+	 * @return commands, unrecognized commands are skipped
+	 */
+	public static Command[] parseLine(String line) {
 		List<Command> result = new ArrayList<Command>();
 		// parse command from current line
-		String[] events = nextLine.split(DELIMITER);
+		String[] events = line.split(DELIMITER);
 		for (String event : events) {
 			Command command = CommandFactory.parse(event);
 			if (command != null) {
@@ -0,0 +1,128 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.nyu.cs.db.MainClass.Clock;
+
+/**
+ * Group commit.
+ * <p>
+ * Transactions that reached <code>End</code> and prepared at all their
+ * participants wait here for their commit decision. A group is closed when
+ * it holds <code>db.commit.group.size</code> transactions, or at the end of a
+ * tick once its first transaction waited <code>db.commit.group.ticks</code>
+ * ticks. Its decisions are then written to the {@link CommitLog} with one
+ * flush, every participant site applies the writes of the whole group in one
+ * pass, and the locks of the group are released.
+ * <p>
+ * Waiting transactions keep their locks, so grouping is only safe under
+ * {@link Protocol#LOCKING}. Other protocols validate against committed
+ * values and commit each transaction alone.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class GroupCommit {
+
+	private final int size;
+
+	private final int ticks;
+
+	private List<Transaction> group = new ArrayList<Transaction>();
+
+	// start of End of each transaction in group, to report commit latency
+	private List<Long> starts = new ArrayList<Long>();
+
+	// tick the first transaction of group arrived
+	private long openedAt = 0;
+
+	public GroupCommit(Protocol protocol) {
+		if (protocol == Protocol.LOCKING) {
+			this.size = Math.max(1, Config.getInt(Config.COMMIT_GROUP_SIZE, 1));
+			this.ticks = Math.max(0, Config.getInt(Config.COMMIT_GROUP_TICKS, 0));
+		} else {
+			this.size = 1;
+			this.ticks = 0;
+		}
+	}
+
+	/**
+	 * Adds prepared transaction to current group
+	 *
+	 * @param t
+	 *            transaction prepared at all participants
+	 * @param start
+	 *            time its End started, in nanoseconds
+	 */
+	public void add(Transaction t, long start) {
+		if (group.isEmpty()) {
+			openedAt = Clock.showTime();
+		}
+		group.add(t);
+		starts.add(start);
+		if (group.size() >= size) {
+			flush();
+		}
+	}
+
+	/**
+	 * Closes current group at the end of a tick if its window is over
+	 */
+	public void tick() {
+		if (!group.isEmpty() && Clock.showTime() - openedAt >= ticks) {
+			flush();
+		}
+	}
+
+	/**
+	 * Commits all transactions of current group
+	 */
+	public void flush() {
+		if (group.isEmpty()) {
+			return;
+		}
+		List<Transaction> committed = group;
+		List<Long> committedStarts = starts;
+		group = new ArrayList<Transaction>();
+		starts = new ArrayList<Long>();
+		// make decisions durable before telling participants
+		CommitLog log = TM.instance().commitLog();
+		for (Transaction t : committed) {
+			t.commitTime = TimestampOracle.instance().next();
+			log.append(t);
+		}
+		log.flush();
+		TM.instance().coordinator().commit(committed);
+		for (int i = 0; i < committed.size(); i++) {
+			finish(committed.get(i), committedStarts.get(i));
+		}
+		Metrics.instance().recordGroupCommit(committed.size());
+	}
+
+	/**
+	 * Drops current group without commit, when transaction manager restarts
+	 * before its decisions were logged
+	 */
+	public void discard() {
+		group = new ArrayList<Transaction>();
+		starts = new ArrayList<Long>();
+	}
+
+	private void finish(Transaction t, long start) {
+		Log.print_commit(t);
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (site.isRunning()) {
+				site.releaseTransaction(t.getId());
+			}
+		}
+		TM.instance().removeTransaction(t.getId());
+		Log.print_end(t.getId(), true);
+		Timeline.finish(t, true);
+		long now = System.nanoTime();
+		Metrics.instance().recordCommit(now - start, now - t.beginNanos);
+	}
+}
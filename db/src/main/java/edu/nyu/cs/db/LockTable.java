@@ -12,6 +12,18 @@ import java.util.Set;
 /**
  * Lock table class.
  * <p>
+ * Locks are held on three levels of granules: the site, ranges of
+ * <code>db.lock.range</code> consecutive variables, and single variables.
+ * Read and write locks on variables are the fine-grained S and X locks.
+ * Holding one implies an intention lock, IS or IX, on its range and on the
+ * site; intention locks are not stored, they are derived from the variable
+ * locks when a coarse lock is requested.
+ * <p>
+ * A transaction holding more than <code>db.lock.escalation</code> variable
+ * locks at a site, 0 for no limit, is escalated to one S or X lock on the
+ * site, or on each of its ranges if other transactions hold conflicting
+ * locks on the site. Its variable locks covered by the coarse lock are
+ * dropped.
  * 
  * @author Daniel Wu
  * 
@@ -22,23 +34,138 @@ public class LockTable {
 
 	public static final String WRITE = "WRITE";
 
+	/**
+	 * Lock modes of granules.
+	 */
+	public static enum Mode {
+		IS, IX, S, X;
+
+		/**
+		 * @param other
+		 *            mode held by another transaction
+		 * @return true if both can be held at the same time
+		 */
+		public boolean compatible(Mode other) {
+			switch (this) {
+			case IS:
+				return other != X;
+			case IX:
+				return other == IS || other == IX;
+			case S:
+				return other == IS || other == S;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * @param other
+		 *            another mode held by the same transaction
+		 * @return weakest mode covering both
+		 */
+		public Mode combine(Mode other) {
+			if (other == null || other == this || other == IS) {
+				return this;
+			}
+			if (this == IS) {
+				return other;
+			}
+			// IX with S, or anything with X
+			return X;
+		}
+	}
+
+	// granule of site, ranges are numbered from 0
+	private static final int SITE = -1;
+
 	// shared read locks
 	private Map<String, Set<String>> readLocks = new HashMap<String, Set<String>>();
 
 	// exclusive write locks
 	private Map<String, String> writeLocks = new HashMap<String, String>();
 
+	// <K,V>=<granule, <transaction id, S or X>>, coarse locks
+	private Map<Integer, Map<String, Mode>> coarseLocks = new HashMap<Integer, Map<String, Mode>>();
+
+	// <K,V>=<transaction id, number of variable locks held>
+	private Map<String, Integer> fineCounts = new HashMap<String, Integer>();
+
+	// index of site owning current lock table
+	private final int site;
+
+	// consecutive variables per range
+	private final int rangeSize;
+
+	// variable locks of a transaction before escalation, 0 for none
+	private final int escalation;
+
+	/**
+	 * Creates lock table with range size and escalation threshold of
+	 * configuration
+	 * 
+	 * @param site
+	 *            index of site owning lock table
+	 */
+	public LockTable(int site) {
+		this(site, Config.getInt(Config.LOCK_RANGE, 10), Config.getInt(
+				Config.LOCK_ESCALATION, 0));
+	}
+
+	/**
+	 * @param site
+	 *            index of site owning lock table
+	 * @param rangeSize
+	 *            consecutive variables per range
+	 * @param escalation
+	 *            variable locks a transaction may hold before it is
+	 *            escalated, 0 for no escalation
+	 */
+	public LockTable(int site, int rangeSize, int escalation) {
+		this.site = site;
+		this.rangeSize = Math.max(1, rangeSize);
+		this.escalation = escalation;
+	}
+
 	public boolean requireLock(String transId, String variable, String lock) {
-		// if no transaction contains current variable
-		if (!lockExists(variable)) {
-			return true;
-		}
-		if (READ.equals(lock)) {
-			return requireReadLock(transId, variable);
+		boolean granted;
+		if (covered(transId, variable, lock)) {
+			granted = true;
+		} else if (coarseConflict(transId, variable, lock)) {
+			granted = false;
+		} else if (!lockExists(variable)) {
+			// if no transaction contains current variable
+			granted = true;
+		} else if (READ.equals(lock)) {
+			granted = requireReadLock(transId, variable);
 		} else {
-			return requireWriteLock(transId, variable);
+			granted = requireWriteLock(transId, variable);
+		}
+		Metrics.instance().recordLockRequest(granted);
+		Contention.instance().record(site, variable, Contention.Event.REQUEST);
+		if (!granted) {
+			Contention.instance().record(site, variable,
+					Contention.Event.DENIAL);
 		}
+		return granted;
+	}
 
+	/**
+	 * Checks several lock requests without granting them
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param requests
+	 *            <K,V>=<variable id, lock type>
+	 * @return variables whose lock would be denied
+	 */
+	public Set<String> deniedLocks(String transId, Map<String, String> requests) {
+		Set<String> denied = new HashSet<String>();
+		for (Entry<String, String> request : requests.entrySet()) {
+			if (!requireLock(transId, request.getKey(), request.getValue())) {
+				denied.add(request.getKey());
+			}
+		}
+		return denied;
 	}
 
 	private boolean requireWriteLock(String transId, String variable) {
@@ -80,32 +207,285 @@ public class LockTable {
 	}
 
 	public void lock(String transId, String var, String lock) {
+		TM.instance().getTransaction(transId).addVaraible(var);
+		if (covered(transId, var, lock)) {
+			return;
+		}
+		boolean added;
 		if (lock.equals(LockTable.WRITE)) {
 			// issue a write lock
-			lockWrite(transId, var);
+			added = lockWrite(transId, var);
 		} else {
-			lockRead(transId, var);
+			added = lockRead(transId, var);
+		}
+		if (added) {
+			Integer count = fineCounts.get(transId);
+			count = count == null ? 1 : count + 1;
+			fineCounts.put(transId, count);
+			if (escalation > 0 && count > escalation) {
+				escalate(transId);
+			}
 		}
-		TM.instance().getTransaction(transId).addVaraible(var);
 	}
 
-	private void lockRead(String transId, String var) {
+	private boolean lockRead(String transId, String var) {
 		if (!readLocks.containsKey(var)) {
 			Set<String> transactions = new HashSet<String>();
 			readLocks.put(var, transactions);
 		}
 		// add in transaction id
-		readLocks.get(var).add(transId);
+		return readLocks.get(var).add(transId);
+	}
+
+	private boolean lockWrite(String transId, String var) {
+		return !transId.equals(this.writeLocks.put(var, transId));
+	}
+
+	private int range(String variable) {
+		return (Integer.parseInt(variable.substring(1)) - 1) / rangeSize;
+	}
+
+	/**
+	 * Checks if a coarse lock of transaction already covers a request
+	 */
+	private boolean covered(String transId, String variable, String lock) {
+		if (coarseLocks.isEmpty()) {
+			return false;
+		}
+		Mode needed = READ.equals(lock) ? Mode.S : Mode.X;
+		for (int granule : new int[] { SITE, range(variable) }) {
+			Map<String, Mode> holders = coarseLocks.get(granule);
+			Mode held = holders == null ? null : holders.get(transId);
+			if (held != null && held.combine(needed) == held) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	private void lockWrite(String transId, String var) {
-		this.writeLocks.put(var, transId);
+	/**
+	 * Checks a variable request against coarse locks of other transactions
+	 * on the site and on the range of the variable
+	 */
+	private boolean coarseConflict(String transId, String variable,
+			String lock) {
+		if (coarseLocks.isEmpty()) {
+			return false;
+		}
+		Mode intention = READ.equals(lock) ? Mode.IS : Mode.IX;
+		for (int granule : new int[] { SITE, range(variable) }) {
+			Map<String, Mode> holders = coarseLocks.get(granule);
+			if (holders == null) {
+				continue;
+			}
+			for (Entry<String, Mode> holder : holders.entrySet()) {
+				if (!holder.getKey().equals(transId)
+						&& !intention.compatible(holder.getValue())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replaces variable locks of a transaction by a lock on the site, or
+	 * failing that by a lock on each range it holds variable locks in
+	 * 
+	 * @param transId
+	 *            transaction id
+	 */
+	private void escalate(String transId) {
+		if (escalate(transId, SITE)) {
+			Metrics.instance().recordLockEscalation();
+			return;
+		}
+		Set<Integer> ranges = new HashSet<Integer>();
+		for (Entry<String, Set<String>> entry : readLocks.entrySet()) {
+			if (entry.getValue().contains(transId)) {
+				ranges.add(range(entry.getKey()));
+			}
+		}
+		for (Entry<String, String> entry : writeLocks.entrySet()) {
+			if (transId.equals(entry.getValue())) {
+				ranges.add(range(entry.getKey()));
+			}
+		}
+		for (int range : ranges) {
+			if (escalate(transId, range)) {
+				Metrics.instance().recordLockEscalation();
+			}
+		}
+	}
+
+	/**
+	 * Takes S or X lock on a granule if it is compatible with locks of other
+	 * transactions, and drops variable locks it covers
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param granule
+	 *            site or range
+	 * @return true if coarse lock is granted
+	 */
+	private boolean escalate(String transId, int granule) {
+		Mode mode = Mode.S;
+		for (Entry<String, String> entry : writeLocks.entrySet()) {
+			if (transId.equals(entry.getValue())
+					&& within(entry.getKey(), granule)) {
+				mode = Mode.X;
+				break;
+			}
+		}
+		// intention locks of other transactions, derived from their locks
+		for (Entry<String, Set<String>> entry : readLocks.entrySet()) {
+			if (!within(entry.getKey(), granule)) {
+				continue;
+			}
+			for (String other : entry.getValue()) {
+				if (!other.equals(transId) && !mode.compatible(Mode.IS)) {
+					return false;
+				}
+			}
+		}
+		for (Entry<String, String> entry : writeLocks.entrySet()) {
+			if (!entry.getValue().equals(transId)
+					&& within(entry.getKey(), granule)
+					&& !mode.compatible(Mode.IX)) {
+				return false;
+			}
+		}
+		for (Entry<Integer, Map<String, Mode>> entry : coarseLocks.entrySet()) {
+			int other = entry.getKey();
+			if (other != granule && other != SITE && granule != SITE) {
+				// disjoint ranges
+				continue;
+			}
+			for (Entry<String, Mode> holder : entry.getValue().entrySet()) {
+				Mode held = holder.getValue();
+				if (granule == SITE && other != SITE) {
+					// lock on a range is an intention lock on the site
+					held = held == Mode.S ? Mode.IS : Mode.IX;
+				}
+				if (!holder.getKey().equals(transId) && !mode.compatible(held)) {
+					return false;
+				}
+			}
+		}
+		Map<String, Mode> holders = coarseLocks.get(granule);
+		if (holders == null) {
+			holders = new HashMap<String, Mode>();
+			coarseLocks.put(granule, holders);
+		}
+		holders.put(transId, mode.combine(holders.get(transId)));
+		TM.instance().getTransaction(transId).setCoarseLocked();
+		// drop covered variable locks
+		int dropped = 0;
+		Iterator<Entry<String, Set<String>>> reads = readLocks.entrySet()
+				.iterator();
+		while (reads.hasNext()) {
+			Entry<String, Set<String>> entry = reads.next();
+			if (within(entry.getKey(), granule)
+					&& entry.getValue().remove(transId)) {
+				dropped++;
+				if (entry.getValue().isEmpty()) {
+					reads.remove();
+				}
+			}
+		}
+		Iterator<Entry<String, String>> writes = writeLocks.entrySet()
+				.iterator();
+		while (writes.hasNext()) {
+			Entry<String, String> entry = writes.next();
+			if (transId.equals(entry.getValue())
+					&& within(entry.getKey(), granule)) {
+				writes.remove();
+				dropped++;
+			}
+		}
+		fineCounts.put(transId, fineCounts.get(transId) - dropped);
+		return true;
+	}
+
+	/**
+	 * Returns transactions holding a lock on the site or on the range of a
+	 * variable
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return transaction ids, empty if there are no coarse locks
+	 */
+	public Set<String> coarseHolders(String variable) {
+		Set<String> holders = new HashSet<String>();
+		if (coarseLocks.isEmpty()) {
+			return holders;
+		}
+		for (int granule : new int[] { SITE, range(variable) }) {
+			if (coarseLocks.containsKey(granule)) {
+				holders.addAll(coarseLocks.get(granule).keySet());
+			}
+		}
+		return holders;
+	}
+
+	/**
+	 * Checks if a transaction holds a write lock on a variable, directly or
+	 * by an escalated lock
+	 *
+	 * @param transId
+	 *            transaction id
+	 * @param variable
+	 *            variable name
+	 * @return true if transaction may have written variable
+	 */
+	public boolean isWriteLocked(String transId, String variable) {
+		if (transId.equals(writeLocks.get(variable))) {
+			return true;
+		}
+		for (int granule : new int[] { SITE, range(variable) }) {
+			Map<String, Mode> holders = coarseLocks.get(granule);
+			if (holders != null && holders.get(transId) == Mode.X) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean within(String variable, int granule) {
+		return granule == SITE || range(variable) == granule;
+	}
+
+	/**
+	 * @return estimated bytes of lock table, transaction ids are shared
+	 *         with transactions and not counted
+	 */
+	public long memoryUsage() {
+		long bytes = MemoryUsage.align(MemoryUsage.HEADER + 4
+				* MemoryUsage.REFERENCE);
+		bytes += MemoryUsage.hashMap(readLocks.size())
+				+ MemoryUsage.strings(readLocks.keySet());
+		for (Set<String> holders : readLocks.values()) {
+			bytes += MemoryUsage.align(MemoryUsage.HEADER
+					+ MemoryUsage.REFERENCE)
+					+ MemoryUsage.hashMap(holders.size());
+		}
+		bytes += MemoryUsage.hashMap(writeLocks.size())
+				+ MemoryUsage.strings(writeLocks.keySet());
+		bytes += MemoryUsage.hashMap(coarseLocks.size());
+		for (Map<String, Mode> holders : coarseLocks.values()) {
+			bytes += MemoryUsage.INTEGER
+					+ MemoryUsage.hashMap(holders.size());
+		}
+		bytes += MemoryUsage.hashMap(fineCounts.size()) + fineCounts.size()
+				* MemoryUsage.INTEGER;
+		return bytes;
 	}
 
 	@Override
 	public String toString() {
 		return " LockTable [readLocks=" + readLocks + ", writeLocks="
-				+ writeLocks + "]";
+				+ writeLocks + (coarseLocks.isEmpty() ? "" : ", coarseLocks="
+				+ coarseLocks) + "]";
 	}
 
 	public void releaseTransaction(String transId) {
@@ -113,6 +493,16 @@ public class LockTable {
 		releaseReadLock(transId);
 		// release write lock
 		releaseWriteLock(transId);
+		// release coarse locks
+		Iterator<Map<String, Mode>> granules = coarseLocks.values().iterator();
+		while (granules.hasNext()) {
+			Map<String, Mode> holders = granules.next();
+			holders.remove(transId);
+			if (holders.isEmpty()) {
+				granules.remove();
+			}
+		}
+		fineCounts.remove(transId);
 	}
 
 	private void releaseWriteLock(String transId) {
@@ -147,5 +537,7 @@ public class LockTable {
 	public void clear() {
 		this.readLocks.clear();
 		this.writeLocks.clear();
+		this.coarseLocks.clear();
+		this.fineCounts.clear();
 	}
 }
@@ -1,28 +1,186 @@
 package edu.nyu.cs.db;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 public class Log {
 
+	/**
+	 * Output level.
+	 * <p>
+	 * Commit, abort and site failure messages form the audit trail and are
+	 * always written. Reads, writes and waits are per-operation messages and
+	 * only written at {@link #OPERATION} level.
+	 */
+	public static enum Verbosity {
+		AUDIT, OPERATION
+	}
+
+	private static volatile Verbosity verbosity = parseVerbosity(Config
+			.getString(Config.LOG_VERBOSITY, Verbosity.OPERATION.name()));
+
+	private static LogWriter writer = createWriter();
+
+	// messages of current thread held back until released
+	private static final ThreadLocal<List<String>> captured = new ThreadLocal<List<String>>();
+
+	private static Verbosity parseVerbosity(String level) {
+		try {
+			return Verbosity.valueOf(level.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			warning("Unknown log verbosity: " + level);
+			return Verbosity.OPERATION;
+		}
+	}
+
+	private static LogWriter createWriter() {
+		if (!Config.getBoolean(Config.LOG_ASYNC, true)) {
+			return new LogWriter.ConsoleWriter();
+		}
+		Writer output = new OutputStreamWriter(System.out);
+		String file = Config.getString(Config.LOG_FILE, null);
+		if (file != null) {
+			try {
+				output = new OutputStreamWriter(new FileOutputStream(file));
+			} catch (FileNotFoundException e) {
+				warning("Cannot open log file " + file + ", using stdout");
+			}
+		}
+		return AsyncLogWriter.create(Config.getInt(Config.LOG_BUFFER, 8192),
+				output);
+	}
+
+	public static void setVerbosity(Verbosity level) {
+		verbosity = level;
+	}
+
+	public static Verbosity getVerbosity() {
+		return verbosity;
+	}
+
+	/**
+	 * @return true if per-operation messages are written
+	 */
+	public static boolean isOperationEnabled() {
+		return verbosity == Verbosity.OPERATION;
+	}
+
+	/**
+	 * Blocks until all messages so far are written
+	 */
+	public static void flush() {
+		writer.flush();
+	}
+
+	/**
+	 * Flushes pending messages and closes the log backend
+	 */
+	public static void close() {
+		writer.close();
+	}
+
+	/**
+	 * Holds back messages of current thread until {@link #release()}, so
+	 * that messages of parallel tasks can be written in a fixed order
+	 */
+	public static void capture() {
+		captured.set(new ArrayList<String>());
+	}
+
+	/**
+	 * @return messages held back since {@link #capture()}, in order
+	 */
+	public static List<String> release() {
+		List<String> lines = captured.get();
+		captured.remove();
+		if (lines == null) {
+			return Collections.emptyList();
+		}
+		return lines;
+	}
+
+	private static void write(String line) {
+		List<String> lines = captured.get();
+		if (lines != null) {
+			lines.add(line);
+		} else {
+			writer.write(line);
+		}
+	}
+
 	/**
 	 * Print out message
-	 * 
+	 *
 	 * @param msg
 	 *            message
 	 */
 	public static void print(Object msg) {
-		System.out.println(msg);
+		write(String.valueOf(msg));
 	}
 
 	public static void print_read(Site site, String variable, Object value) {
-		System.out.println("Read " + variable + " from site " + site.getIndex()
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("Read " + variable + " from site " + site.getIndex()
 				+ " value = " + value);
 	}
 
+	public static void print_view(Views.View view) {
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("View " + view + " value = " + view.current());
+	}
+
+	public static void print_read_view(String name, Object value) {
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("Read view " + name + " value = " + value);
+	}
+
+	public static void print_reads(Site site, Map<String, Integer> values) {
+		if (!isOperationEnabled() || values.isEmpty()) {
+			return;
+		}
+		write("Read " + format(values) + " from site "
+				+ site.getIndex());
+	}
+
+	public static void print_writes(Site site, Map<String, Integer> values) {
+		if (!isOperationEnabled() || values.isEmpty()) {
+			return;
+		}
+		write("Write " + format(values) + " to site " + site.getIndex());
+	}
+
+	private static String format(Map<String, Integer> values) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : values.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
 	public static void warning(String string) {
 		System.err.println(string);
 	}
 
 	public static void print_write(Site site, Object variable, Object value) {
-		System.out.println("Write " + variable + " to site " + site.getIndex()
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("Write " + variable + " to site " + site.getIndex()
 				+ " value = " + value);
 	}
 
@@ -32,27 +190,40 @@ public class Log {
 	}
 
 	public static void abort(Transaction t) {
-		System.out.println("Transaction " + t.getId()
-				+ " aborted by wait-die-protocal");
+		abort(t, "wait-die-protocal");
+	}
+
+	public static void abort(Transaction t, String reason) {
+		write("Transaction " + t.getId() + " aborted by " + reason);
 	}
 
 	public static void print_site(Site site) {
 		if (!site.isRunning()) {
-			System.out.println("Site " + site.getIndex() + " fails");
+			write("Site " + site.getIndex() + " fails");
 			return;
 		}
-		System.out.println(site);
+		write(site.toString());
 	}
 
 	public static void print_abort(String t) {
-		System.out.println("Transaction " + t + " aborted.");
+		write("Transaction " + t + " aborted.");
 	}
 
 	public static void print_commit(Transaction t) {
-		System.out.println("Transaction " + t.getId() + " commited.");
+		write("Transaction " + t.getId() + " commited.");
+	}
+
+	public static void print_queued(Transaction t, String reason) {
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("Transaction " + t.getId() + " queued for " + reason);
 	}
 
 	public static void print_wait(Transaction t) {
-		System.out.println("Transaction " + t.getId() + " wait because older");
+		if (!isOperationEnabled()) {
+			return;
+		}
+		write("Transaction " + t.getId() + " wait because older");
 	}
 }
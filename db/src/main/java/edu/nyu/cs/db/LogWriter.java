@@ -0,0 +1,52 @@
+package edu.nyu.cs.db;
+
+/**
+ * Backend of {@link Log}.
+ * <p>
+ * A log writer receives preformatted lines and decides when they reach the
+ * output.
+ *
+ * @author Daniel Wu
+ *
+ */
+public interface LogWriter {
+
+	/**
+	 * Appends one line to the log
+	 *
+	 * @param line
+	 *            preformatted line, without line separator
+	 */
+	void write(String line);
+
+	/**
+	 * Blocks until all lines written so far reach the output
+	 */
+	void flush();
+
+	/**
+	 * Flushes and releases the output
+	 */
+	void close();
+
+	/**
+	 * Writes every line synchronously to standard output.
+	 */
+	public static class ConsoleWriter implements LogWriter {
+
+		@Override
+		public void write(String line) {
+			System.out.println(line);
+		}
+
+		@Override
+		public void flush() {
+			System.out.flush();
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+	}
+}
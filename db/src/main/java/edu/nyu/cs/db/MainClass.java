@@ -26,9 +26,8 @@ public class MainClass {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		// TODO check against input options
-
-		String filePath = "";
+		// read from input file if given, otherwise from standard input
+		String filePath = args.length > 0 ? args[0] : "";
 		MainClass mc = null;
 		try {
 			mc = new MainClass(filePath);
@@ -42,6 +41,26 @@ public class MainClass {
 		} catch (IOException e) {
 			e.printStackTrace();
 			return;
+		} finally {
+			// commit transactions still waiting for their group
+			TM.instance().groupCommit().flush();
+			SnapshotExport.await();
+			exportTrace();
+			// write out buffered log
+			Log.close();
+		}
+	}
+
+	private static void exportTrace() {
+		String traceFile = Config.getString(Config.TRACE_FILE, null);
+		if (traceFile == null) {
+			return;
+		}
+		try {
+			Timeline.export(traceFile);
+		} catch (IOException e) {
+			Log.warning("Cannot export trace to " + traceFile + ": "
+					+ e.getMessage());
 		}
 	}
 
@@ -60,20 +79,22 @@ public class MainClass {
 			// next tick
 			Clock.tiktok();
 			Command[] commands = fm.nextCommands();
-			tm.process(commands);
+			// transaction manager may be replaced by restart
+			TM.instance().process(commands);
 		}
 	}
 
+	/**
+	 * Logical tick of input, kept by {@link TimestampOracle}
+	 */
 	public static class Clock {
 
-		private static int time = 0;
-
 		public static void tiktok() {
-			time++;
+			TimestampOracle.instance().tick();
 		}
 
-		public static int showTime() {
-			return time;
+		public static long showTime() {
+			return TimestampOracle.instance().currentTick();
 		}
 	}
 
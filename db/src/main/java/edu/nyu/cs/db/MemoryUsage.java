@@ -0,0 +1,124 @@
+package edu.nyu.cs.db;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates of heap bytes used by objects of the database.
+ * <p>
+ * Sizes assume a 64-bit JVM with compressed references: 12 bytes of object
+ * header, 4 bytes per reference, 16 bytes of array header, objects aligned
+ * to 8 bytes, strings stored as one byte per character. Collections are
+ * counted by their entries, the objects they point to are counted by their
+ * owner. Estimates are meant to plan heap size from key counts, not to
+ * replace a heap dump.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class MemoryUsage {
+
+	public static final int HEADER = 12;
+
+	public static final int REFERENCE = 4;
+
+	public static final int ARRAY_HEADER = 16;
+
+	// HashMap.Node: hash, key, value, next
+	public static final int HASH_ENTRY = 32;
+
+	// LinkedHashMap.Entry adds before and after
+	public static final int LINKED_HASH_ENTRY = 40;
+
+	// TreeMap.Entry: key, value, left, right, parent, color
+	public static final int TREE_ENTRY = 40;
+
+	// ConcurrentSkipListMap node plus index nodes, one per two entries
+	public static final int SKIP_LIST_ENTRY = 36;
+
+	// HashMap itself, table counted by entries
+	public static final int HASH_MAP = 48;
+
+	// boxed Integer
+	public static final int INTEGER = 16;
+
+	private MemoryUsage() {
+	}
+
+	/**
+	 * @param bytes
+	 *            unaligned size
+	 * @return size aligned to 8 bytes
+	 */
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * @param length
+	 *            array length
+	 * @param elementBytes
+	 *            bytes per element
+	 * @return bytes of array
+	 */
+	public static long array(int length, int elementBytes) {
+		return align(ARRAY_HEADER + (long) length * elementBytes);
+	}
+
+	/**
+	 * @param s
+	 *            string, may be null
+	 * @return bytes of string and its characters
+	 */
+	public static long string(String s) {
+		if (s == null) {
+			return 0;
+		}
+		// hash, coder and value
+		return align(HEADER + 4 + 2 + REFERENCE) + array(s.length(), 1);
+	}
+
+	/**
+	 * @param entries
+	 *            number of entries
+	 * @return bytes of hash map with its table, keys and values excluded
+	 */
+	public static long hashMap(int entries) {
+		if (entries == 0) {
+			// table is allocated on first put
+			return HASH_MAP;
+		}
+		int capacity = 16;
+		while (capacity * 3 / 4 < entries) {
+			capacity <<= 1;
+		}
+		return HASH_MAP + array(capacity, REFERENCE) + (long) entries
+				* HASH_ENTRY;
+	}
+
+	/**
+	 * @param map
+	 *            map with string keys and boxed integer values, may be null
+	 * @return bytes of map, its keys and values
+	 */
+	public static long stringIntMap(Map<String, Integer> map) {
+		if (map == null) {
+			return 0;
+		}
+		return hashMap(map.size()) + strings(map.keySet()) + (long) map.size()
+				* INTEGER;
+	}
+
+	/**
+	 * @param strings
+	 *            strings
+	 * @return bytes of all strings
+	 */
+	public static long strings(Collection<String> strings) {
+		long bytes = 0;
+		for (String s : strings) {
+			bytes += string(s);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,432 @@
+package edu.nyu.cs.db;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics.
+ * <p>
+ * Counters and histograms are recorded on the hot path with atomic
+ * operations only. They are exported over JMX and, if
+ * <code>db.metrics.interval</code> is set, written to the log as a text
+ * snapshot every given number of seconds.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Metrics implements MetricsMXBean {
+
+	public static final String OBJECT_NAME = "edu.nyu.cs.db:type=Metrics";
+
+	private static Metrics instance = new Metrics();
+
+	private final AtomicLong lockRequests = new AtomicLong();
+
+	private final AtomicLong lockDenials = new AtomicLong();
+
+	private final AtomicLong lockWaits = new AtomicLong();
+
+	private final AtomicLong waitDieAborts = new AtomicLong();
+
+	private final AtomicLong commits = new AtomicLong();
+
+	private final AtomicLong aborts = new AtomicLong();
+
+	// time from a command first waiting until its lock is granted
+	private final Histogram lockWaitLatency = new Histogram();
+
+	// time spent in End for committed transactions
+	private final Histogram commitLatency = new Histogram();
+
+	// time spent in End or Abort for aborted transactions
+	private final Histogram abortLatency = new Histogram();
+
+	// time spent in Site.commit
+	private final Histogram siteCommitLatency = new Histogram();
+
+	// time from Begin until commit
+	private final Histogram transactionLatency = new Histogram();
+
+	// size of buffered command queue at end of each tick
+	private final Histogram bufferedDepth = new Histogram();
+
+	// messages of two-phase commit per transaction
+	private final Histogram commitMessages = new Histogram();
+
+	private final AtomicLong readOnlyParticipants = new AtomicLong();
+
+	// transactions queued by admission control
+	private final AtomicLong admissionWaits = new AtomicLong();
+
+	// variable locks replaced by a lock on a site or range
+	private final AtomicLong lockEscalations = new AtomicLong();
+
+	// reads of read-only transactions served by the read cache
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	// transactions committed per commit log flush
+	private final Histogram groupSizes = new Histogram();
+
+	private final AtomicInteger buffered = new AtomicInteger();
+
+	private final AtomicLongArray siteReads = new AtomicLongArray(
+			DM.SITE_COUNT + 1);
+
+	private final AtomicLongArray siteWrites = new AtomicLongArray(
+			DM.SITE_COUNT + 1);
+
+	// start of rates of snapshots
+	private final long created = System.nanoTime();
+
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * Creates metrics and registers them over JMX
+	 */
+	private Metrics() {
+		if (Config.getBoolean(Config.METRICS_JMX, true)) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+						new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				Log.warning("Cannot register metrics over JMX: " + e);
+			}
+		}
+		int interval = Config.getInt(Config.METRICS_INTERVAL, 0);
+		if (interval > 0) {
+			startReporter(interval);
+		}
+	}
+
+	public static Metrics instance() {
+		return instance;
+	}
+
+	/**
+	 * Writes snapshot to the log periodically
+	 *
+	 * @param seconds
+	 *            seconds between two snapshots
+	 */
+	public synchronized void startReporter(int seconds) {
+		if (reporter != null) {
+			reporter.shutdownNow();
+		}
+		reporter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "metrics-reporter");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		reporter.scheduleAtFixedRate(new Runnable() {
+
+			// counters at last report, used to compute rates
+			private long[] lastReads = new long[DM.SITE_COUNT + 1];
+
+			private long[] lastWrites = new long[DM.SITE_COUNT + 1];
+
+			private long lastReport = System.nanoTime();
+
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				long[] reads = getSiteReads();
+				long[] writes = getSiteWrites();
+				Log.print(snapshot(now - lastReport, reads, lastReads, writes,
+						lastWrites));
+				lastReads = reads;
+				lastWrites = writes;
+				lastReport = now;
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	public void recordLockRequest(boolean granted) {
+		lockRequests.incrementAndGet();
+		if (!granted) {
+			lockDenials.incrementAndGet();
+		}
+	}
+
+	public void recordLockWait() {
+		lockWaits.incrementAndGet();
+	}
+
+	public void recordLockGranted(long waitNanos) {
+		lockWaitLatency.record(waitNanos);
+	}
+
+	public void recordWaitDieAbort() {
+		waitDieAborts.incrementAndGet();
+	}
+
+	public void recordCommit(long endNanos, long lifetimeNanos) {
+		commits.incrementAndGet();
+		commitLatency.record(endNanos);
+		transactionLatency.record(lifetimeNanos);
+	}
+
+	public void recordAbort(long endNanos) {
+		aborts.incrementAndGet();
+		abortLatency.record(endNanos);
+	}
+
+	public void recordSiteCommit(long nanos) {
+		siteCommitLatency.record(nanos);
+	}
+
+	public void recordTwoPhaseCommit(int messages, int readOnly) {
+		commitMessages.record(messages);
+		readOnlyParticipants.addAndGet(readOnly);
+	}
+
+	public void recordAdmissionWait() {
+		admissionWaits.incrementAndGet();
+	}
+
+	public void recordLockEscalation() {
+		lockEscalations.incrementAndGet();
+	}
+
+	public void recordCacheHit() {
+		cacheHits.incrementAndGet();
+	}
+
+	public void recordCacheMiss() {
+		cacheMisses.incrementAndGet();
+	}
+
+	public void recordGroupCommit(int size) {
+		groupSizes.record(size);
+	}
+
+	public void recordBuffered(int depth) {
+		buffered.set(depth);
+		bufferedDepth.record(depth);
+	}
+
+	public void recordRead(int site) {
+		siteReads.incrementAndGet(site);
+	}
+
+	public void recordWrite(int site) {
+		siteWrites.incrementAndGet(site);
+	}
+
+	/**
+	 * @return latency from Begin until commit, in nanoseconds
+	 */
+	public Histogram getTransactionLatency() {
+		return transactionLatency;
+	}
+
+	@Override
+	public long getLockRequests() {
+		return lockRequests.get();
+	}
+
+	@Override
+	public long getLockDenials() {
+		return lockDenials.get();
+	}
+
+	@Override
+	public long getLockWaits() {
+		return lockWaits.get();
+	}
+
+	@Override
+	public long getLockWaitP50Micros() {
+		return lockWaitLatency.getValueAtPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getLockWaitP99Micros() {
+		return lockWaitLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getWaitDieAborts() {
+		return waitDieAborts.get();
+	}
+
+	@Override
+	public long getCommits() {
+		return commits.get();
+	}
+
+	@Override
+	public long getAborts() {
+		return aborts.get();
+	}
+
+	@Override
+	public long getCommitP50Micros() {
+		return commitLatency.getValueAtPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getCommitP99Micros() {
+		return commitLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getAbortP50Micros() {
+		return abortLatency.getValueAtPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getAbortP99Micros() {
+		return abortLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getSiteCommitP99Micros() {
+		return siteCommitLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	@Override
+	public double getCommitMessagesMean() {
+		return commitMessages.getMean();
+	}
+
+	@Override
+	public long getReadOnlyParticipants() {
+		return readOnlyParticipants.get();
+	}
+
+	@Override
+	public long getAdmissionWaits() {
+		return admissionWaits.get();
+	}
+
+	@Override
+	public long getLockEscalations() {
+		return lockEscalations.get();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public long getCommitFlushes() {
+		return groupSizes.getCount();
+	}
+
+	@Override
+	public double getCommitsPerFlushMean() {
+		return groupSizes.getMean();
+	}
+
+	@Override
+	public int getBufferedCommands() {
+		return buffered.get();
+	}
+
+	@Override
+	public long getBufferedCommandsMax() {
+		return bufferedDepth.getMax();
+	}
+
+	@Override
+	public long[] getSiteReads() {
+		return toArray(siteReads);
+	}
+
+	@Override
+	public long[] getSiteWrites() {
+		return toArray(siteWrites);
+	}
+
+	private static long[] toArray(AtomicLongArray counters) {
+		long[] result = new long[counters.length()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = counters.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Formats all metrics as text. Site rates are averages since metrics
+	 * were created.
+	 *
+	 * @return text snapshot
+	 */
+	@Override
+	public String getSnapshot() {
+		long[] none = new long[DM.SITE_COUNT + 1];
+		return snapshot(System.nanoTime() - created, getSiteReads(), none,
+				getSiteWrites(), none);
+	}
+
+	/**
+	 * Formats all metrics as text
+	 *
+	 * @param nanos
+	 *            time over which site rates are computed
+	 * @param reads
+	 *            current reads of each site
+	 * @param lastReads
+	 *            reads of each site at start of period
+	 * @param writes
+	 *            current writes of each site
+	 * @param lastWrites
+	 *            writes of each site at start of period
+	 * @return text snapshot
+	 */
+	private String snapshot(long nanos, long[] reads, long[] lastReads,
+			long[] writes, long[] lastWrites) {
+		double seconds = Math.max(1e-9, nanos / 1e9);
+		StringBuilder sb = new StringBuilder("Metrics [");
+		sb.append("locks requested=").append(getLockRequests());
+		sb.append(" denied=").append(getLockDenials());
+		sb.append(" waits=").append(getLockWaits());
+		sb.append(" escalations=").append(getLockEscalations());
+		sb.append(" wait-die aborts=").append(getWaitDieAborts());
+		sb.append(", commits=").append(getCommits());
+		sb.append(" aborts=").append(getAborts());
+		sb.append(", buffered=").append(getBufferedCommands());
+		sb.append("]\n  lock wait ns: ").append(lockWaitLatency);
+		sb.append("\n  commit ns: ").append(commitLatency);
+		sb.append("\n  abort ns: ").append(abortLatency);
+		sb.append("\n  site commit ns: ").append(siteCommitLatency);
+		sb.append("\n  transaction ns: ").append(transactionLatency);
+		sb.append("\n  buffered commands: ").append(bufferedDepth);
+		sb.append("\n  2pc messages: ").append(commitMessages);
+		sb.append(" read-only participants=").append(
+				getReadOnlyParticipants());
+		sb.append("\n  commits per flush: ").append(groupSizes);
+		sb.append("\n  admission waits: ").append(getAdmissionWaits());
+		sb.append("\n  read cache hits=").append(getCacheHits());
+		sb.append(" misses=").append(getCacheMisses());
+		for (int i = 1; i < reads.length; i++) {
+			sb.append("\n  site ").append(i);
+			sb.append(" reads/s=").append(
+					Math.round((reads[i] - lastReads[i]) / seconds));
+			sb.append(" writes/s=").append(
+					Math.round((writes[i] - lastWrites[i]) / seconds));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,65 @@
+package edu.nyu.cs.db;
+
+/**
+ * JMX view of {@link Metrics}.
+ * <p>
+ * Registered as <code>edu.nyu.cs.db:type=Metrics</code>. Latencies are in
+ * microseconds.
+ *
+ * @author Daniel Wu
+ *
+ */
+public interface MetricsMXBean {
+
+	long getLockRequests();
+
+	long getLockDenials();
+
+	long getLockWaits();
+
+	long getLockEscalations();
+
+	long getLockWaitP50Micros();
+
+	long getLockWaitP99Micros();
+
+	long getWaitDieAborts();
+
+	long getCommits();
+
+	long getAborts();
+
+	long getCommitP50Micros();
+
+	long getCommitP99Micros();
+
+	long getAbortP50Micros();
+
+	long getAbortP99Micros();
+
+	long getSiteCommitP99Micros();
+
+	double getCommitMessagesMean();
+
+	long getReadOnlyParticipants();
+
+	long getAdmissionWaits();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getCommitFlushes();
+
+	double getCommitsPerFlushMean();
+
+	int getBufferedCommands();
+
+	long getBufferedCommandsMax();
+
+	long[] getSiteReads();
+
+	long[] getSiteWrites();
+
+	String getSnapshot();
+}
@@ -0,0 +1,136 @@
+package edu.nyu.cs.db;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import edu.nyu.cs.db.CommandFactory.R;
+import edu.nyu.cs.db.CommandFactory.W;
+import edu.nyu.cs.db.Transaction.TransactionException;
+
+/**
+ * Optimistic concurrency control.
+ * <p>
+ * A read-write transaction reads committed values without locks and records
+ * the copy and version of each variable read. Versions count the writes
+ * applied to one copy, and a replica that was down counts differently, so
+ * validation checks the same copy again; the transaction aborts if that copy
+ * is gone. Its writes stay in a private buffer. When the transaction ends,
+ * the read set is validated against the versions committed since; if none
+ * changed, the buffered writes are staged at every
+ * available copy and committed as usual. Validation and installation happen
+ * within one {@link CommandFactory.End} command, so no other transaction can
+ * commit in between.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class OptimisticControl {
+
+	/**
+	 * Reads committed value of variable from first available copy
+	 *
+	 * @param read
+	 *            read command
+	 * @return false if no copy is available
+	 * @throws TransactionException
+	 *             never, reads don't conflict
+	 */
+	public boolean read(R read) throws TransactionException {
+		Transaction t = TM.instance().getTransaction(read.arg1);
+		String var = read.arg2;
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning() || !site.isInitialized(var)) {
+				continue;
+			}
+			if (t.isReadOnly()) {
+				return read.execute(site, true);
+			}
+			Integer buffered = t.getBufferedWrite(var);
+			if (buffered != null) {
+				// read own write
+				Log.print_read(site, var, buffered);
+				return true;
+			}
+			t.recordRead(var, site.index, site.version(var));
+			Log.print_read(site, var, site.readCommitted(var));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Buffers write in transaction
+	 *
+	 * @param write
+	 *            write command
+	 * @throws TransactionException
+	 *             if transaction is read-only
+	 */
+	public void write(W write) throws TransactionException {
+		Transaction t = TM.instance().getTransaction(write.arg1);
+		if (t.isReadOnly()) {
+			throw new TransactionException("write in read-only transaction");
+		}
+		t.bufferWrite(write.arg2, Integer.parseInt(write.arg3));
+	}
+
+	/**
+	 * Validates read set and stages buffered writes at all available copies
+	 *
+	 * @param t
+	 *            transaction to commit
+	 * @return true if transaction can commit
+	 */
+	public boolean validate(Transaction t) {
+		if (t.isReadOnly()) {
+			return true;
+		}
+		for (Entry<String, Integer> read : t.getReadVersions().entrySet()) {
+			String var = read.getKey();
+			Site site = DM.instance().getSite(t.getReadSite(var));
+			if (!site.isRunning() || !site.isCommitted(var)
+					|| site.version(var) != read.getValue()) {
+				Log.print("Transaction " + t.getId()
+						+ " failed validation on " + var);
+				return false;
+			}
+		}
+		Map<String, Integer> writes = t.getBufferedWrites();
+		for (String var : writes.keySet()) {
+			if (availableCopy(var) == null) {
+				Log.print("Transaction " + t.getId() + " has no copy of "
+						+ var + " to write");
+				return false;
+			}
+		}
+		// install buffered writes, committed by End
+		for (Entry<String, Integer> write : writes.entrySet()) {
+			String var = write.getKey();
+			int value = write.getValue();
+			Iterator<Site> sites = DM.instance().iterator();
+			while (sites.hasNext()) {
+				Site site = sites.next();
+				if (site.isRunning() && site.hasVariable(var)) {
+					site.write(t.getId(), var, value);
+					Log.print_write(site, var, value);
+				}
+			}
+			t.addVaraible(var);
+		}
+		return true;
+	}
+
+	private static Site availableCopy(String var) {
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (site.isRunning() && site.isInitialized(var)) {
+				return site;
+			}
+		}
+		return null;
+	}
+}
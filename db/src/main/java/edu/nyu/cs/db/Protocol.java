@@ -0,0 +1,61 @@
+package edu.nyu.cs.db;
+
+/**
+ * Concurrency control protocol of read-write transactions.
+ * <p>
+ * Chosen per run with <code>db.protocol</code>. Read-only transactions always
+ * read from the snapshot at their begin time.
+ *
+ * @author Daniel Wu
+ *
+ */
+public enum Protocol {
+
+	/**
+	 * Strict two phase locking, conflicts resolved by wait-die.
+	 */
+	LOCKING("2pl"),
+
+	/**
+	 * Optimistic concurrency control. Reads take no locks and remember the
+	 * version read, writes are buffered in the transaction. At commit the read
+	 * versions are validated and the buffered writes installed.
+	 */
+	OPTIMISTIC("occ"),
+
+	/**
+	 * Snapshot isolation. Reads see the versions committed before the
+	 * transaction began and take no locks, writes take write locks and abort
+	 * on write-write conflicts.
+	 */
+	SNAPSHOT("si"),
+
+	/**
+	 * Deterministic batch-sequenced execution. Transactions declare their
+	 * read and write sets at begin and are granted locks in sequence order,
+	 * see {@link DeterministicEngine}.
+	 */
+	DETERMINISTIC("calvin");
+
+	// short name accepted by db.protocol
+	private final String alias;
+
+	Protocol(String alias) {
+		this.alias = alias;
+	}
+
+	/**
+	 * @return protocol given by <code>db.protocol</code>, LOCKING by default
+	 */
+	public static Protocol configured() {
+		String name = Config.getString(Config.PROTOCOL, LOCKING.name());
+		for (Protocol protocol : values()) {
+			if (protocol.name().equalsIgnoreCase(name)
+					|| protocol.alias.equalsIgnoreCase(name)) {
+				return protocol;
+			}
+		}
+		Log.warning("Unknown protocol " + name + ", using " + LOCKING);
+		return LOCKING;
+	}
+}
@@ -0,0 +1,130 @@
+package edu.nyu.cs.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of committed values, kept by transaction manager.
+ * <p>
+ * Read-only transactions are served from the cache without a site scan. An
+ * entry holds the last committed value of a variable, its version and
+ * commit timestamp, and the site it was read from. It is visible to a
+ * transaction that began after the commit, since the entry is dropped as
+ * soon as a newer write commits at any site.
+ * <p>
+ * At most <code>db.cache.size</code> entries are kept, least recently used
+ * first evicted, 0 disables the cache. Site failure and recovery change the
+ * site a read goes to, so they clear the cache.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class ReadCache {
+
+	private final int capacity;
+
+	// <K,V>=<variable name, entry>, in access order
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > capacity;
+		}
+	};
+
+	/**
+	 * Creates cache of configured size
+	 */
+	public ReadCache() {
+		this(Config.getInt(Config.CACHE_SIZE, 0));
+	}
+
+	/**
+	 * @param capacity
+	 *            entries kept, 0 disables cache
+	 */
+	public ReadCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Looks up committed value visible to a transaction
+	 *
+	 * @param var
+	 *            variable name
+	 * @param beginTime
+	 *            timestamp transaction began at
+	 * @return cached entry, or null if none is cached or cached value was
+	 *         committed after transaction began
+	 */
+	public synchronized Entry get(String var, long beginTime) {
+		Entry entry = entries.get(var);
+		if (entry == null || entry.commitTime > beginTime) {
+			Metrics.instance().recordCacheMiss();
+			return null;
+		}
+		Metrics.instance().recordCacheHit();
+		return entry;
+	}
+
+	/**
+	 * Caches last committed value of a copy
+	 *
+	 * @param site
+	 *            site holding copy
+	 * @param var
+	 *            variable name
+	 */
+	public synchronized void fill(Site site, String var) {
+		if (isEnabled()) {
+			entries.put(var, site.committed(var));
+		}
+	}
+
+	/**
+	 * Drops entry of a variable, called when a write to it commits
+	 *
+	 * @param var
+	 *            variable name
+	 */
+	public void invalidate(String var) {
+		if (!isEnabled()) {
+			return;
+		}
+		synchronized (this) {
+			entries.remove(var);
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Committed value of a variable as read from a site.
+	 */
+	public static class Entry {
+
+		public final int site;
+
+		public final int value;
+
+		public final int version;
+
+		public final long commitTime;
+
+		public Entry(int site, int value, int version, long commitTime) {
+			this.site = site;
+			this.value = value;
+			this.version = version;
+			this.commitTime = commitTime;
+		}
+	}
+}
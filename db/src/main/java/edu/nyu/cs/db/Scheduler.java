@@ -0,0 +1,218 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import edu.nyu.cs.db.Command.TransactionCommand;
+
+/**
+ * Scheduler of blocked commands.
+ * <p>
+ * A command that cannot run waits on its variables, in the queue of its
+ * transaction. It becomes ready only when one of them is released by a
+ * finished transaction, or when a site fails or recovers; waiters nobody
+ * woke up are not retried. Ready commands are retried before the commands
+ * of the next tick, by priority class of their transaction and then in the
+ * order they first blocked.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Scheduler {
+
+	private static final Comparator<TransactionCommand> BLOCK_ORDER = new Comparator<TransactionCommand>() {
+
+		@Override
+		public int compare(TransactionCommand c1, TransactionCommand c2) {
+			if (c1.priority != c2.priority) {
+				return c1.priority < c2.priority ? -1 : 1;
+			}
+			return c1.sequence < c2.sequence ? -1
+					: (c1.sequence == c2.sequence ? 0 : 1);
+		}
+	};
+
+	// <K,V>=<transaction id, blocked commands in arrival order>
+	private final Map<String, LinkedList<TransactionCommand>> queues = new HashMap<String, LinkedList<TransactionCommand>>();
+
+	// <K,V>=<variable id, blocked commands waiting on variable>
+	private final Map<String, List<TransactionCommand>> waiters = new HashMap<String, List<TransactionCommand>>();
+
+	// <K,V>=<blocked command, variables it waits on>
+	private final Map<TransactionCommand, Collection<String>> waitingOn = new HashMap<TransactionCommand, Collection<String>>();
+
+	// woken up commands, retried on next tick
+	private final TreeSet<TransactionCommand> ready = new TreeSet<TransactionCommand>(
+			BLOCK_ORDER);
+
+	private long sequence = 0;
+
+	private int size = 0;
+
+	/**
+	 * Blocks command until its variable is released
+	 *
+	 * @param command
+	 *            read or write command
+	 */
+	public void block(TransactionCommand command) {
+		block(command, Collections.singleton(command.arg2));
+	}
+
+	/**
+	 * Blocks command until one of given variables is released
+	 *
+	 * @param command
+	 *            transaction command
+	 * @param varIds
+	 *            variables command waits on
+	 */
+	public void block(TransactionCommand command, Collection<String> varIds) {
+		enqueue(command);
+		for (String varId : varIds) {
+			// same variable may be named x1 or X1
+			varId = varId.toLowerCase();
+			List<TransactionCommand> list = waiters.get(varId);
+			if (list == null) {
+				list = new ArrayList<TransactionCommand>();
+				waiters.put(varId, list);
+			}
+			list.add(command);
+		}
+		waitingOn.put(command, varIds);
+	}
+
+	/**
+	 * Makes command ready to retry on next tick
+	 *
+	 * @param command
+	 *            transaction command
+	 */
+	public void ready(TransactionCommand command) {
+		enqueue(command);
+		ready.add(command);
+	}
+
+	private void enqueue(TransactionCommand command) {
+		if (command.sequence == 0) {
+			command.sequence = ++sequence;
+			command.priority = TM.instance().getTransaction(command.arg1)
+					.getPriority().ordinal();
+		}
+		LinkedList<TransactionCommand> queue = queues.get(command.arg1);
+		if (queue == null) {
+			queue = new LinkedList<TransactionCommand>();
+			queues.put(command.arg1, queue);
+		}
+		queue.add(command);
+		size++;
+	}
+
+	/**
+	 * Wakes up commands waiting on variable
+	 *
+	 * @param varId
+	 *            variable id
+	 */
+	public void wake(String varId) {
+		List<TransactionCommand> list = waiters.remove(varId.toLowerCase());
+		if (list == null) {
+			return;
+		}
+		for (TransactionCommand command : list) {
+			unlink(command);
+			ready.add(command);
+		}
+	}
+
+	// removes command from waiters of all its variables
+	private void unlink(TransactionCommand command) {
+		Collection<String> varIds = waitingOn.remove(command);
+		if (varIds == null) {
+			return;
+		}
+		for (String varId : varIds) {
+			varId = varId.toLowerCase();
+			List<TransactionCommand> list = waiters.get(varId);
+			if (list != null) {
+				list.remove(command);
+				if (list.isEmpty()) {
+					waiters.remove(varId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wakes up all blocked commands, e.g. when a site fails or recovers
+	 */
+	public void wakeAll() {
+		ready.addAll(waitingOn.keySet());
+		waitingOn.clear();
+		waiters.clear();
+	}
+
+	/**
+	 * Takes ready commands out of the scheduler, a command that still cannot
+	 * run is blocked again
+	 *
+	 * @return ready commands in the order they first blocked
+	 */
+	public List<TransactionCommand> drainReady() {
+		List<TransactionCommand> result = new ArrayList<TransactionCommand>(
+				ready);
+		ready.clear();
+		for (TransactionCommand command : result) {
+			LinkedList<TransactionCommand> queue = queues.get(command.arg1);
+			queue.remove(command);
+			if (queue.isEmpty()) {
+				queues.remove(command.arg1);
+			}
+		}
+		size -= result.size();
+		return result;
+	}
+
+	/**
+	 * Removes all blocked commands of transaction
+	 *
+	 * @param transId
+	 *            transaction id
+	 * @return removed commands in arrival order
+	 */
+	public List<TransactionCommand> remove(String transId) {
+		LinkedList<TransactionCommand> queue = queues.remove(transId);
+		if (queue == null) {
+			return Collections.emptyList();
+		}
+		for (TransactionCommand command : queue) {
+			ready.remove(command);
+			unlink(command);
+		}
+		size -= queue.size();
+		return queue;
+	}
+
+	/**
+	 * @param transId
+	 *            transaction id
+	 * @return true if transaction has blocked commands
+	 */
+	public boolean isWaiting(String transId) {
+		return queues.containsKey(transId);
+	}
+
+	/**
+	 * @return number of blocked commands
+	 */
+	public int size() {
+		return size;
+	}
+}
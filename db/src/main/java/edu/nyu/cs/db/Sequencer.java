@@ -0,0 +1,122 @@
+package edu.nyu.cs.db;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.nyu.cs.db.MainClass.Clock;
+
+/**
+ * Sequencer of deterministic execution.
+ * <p>
+ * Collects transactions with declared read and write sets in arrival order
+ * and closes them into a batch every <code>db.sequencer.batch</code> ticks.
+ * The order inside and across batches is the only input of lock
+ * acquisition.
+ * <p>
+ * If <code>db.sequencer.log</code> is given, each batch is appended to that
+ * file as one line, for inspection of the order that was granted:
+ *
+ * <pre>
+ * batch-number tick T1[x1,x2][x3];T2[x4][]
+ * </pre>
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Sequencer {
+
+	private final int batchTicks;
+
+	private List<Transaction> current = new ArrayList<Transaction>();
+
+	private long batches = 0;
+
+	private int ticks = 0;
+
+	private Writer log = null;
+
+	public Sequencer() {
+		this.batchTicks = Math.max(1, Config.getInt(Config.SEQUENCER_BATCH, 1));
+		String path = Config.getString(Config.SEQUENCER_LOG, null);
+		if (path != null) {
+			try {
+				log = new BufferedWriter(new FileWriter(path));
+			} catch (IOException e) {
+				Log.warning("Cannot open batch log " + path + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Appends transaction to current batch
+	 *
+	 * @param t
+	 *            transaction with declared read and write sets
+	 */
+	public void add(Transaction t) {
+		current.add(t);
+	}
+
+	/**
+	 * Closes current batch at the end of a tick if batch window is over
+	 *
+	 * @return transactions of closed batch in sequence order, empty if batch
+	 *         is still open
+	 */
+	public List<Transaction> tick() {
+		if (++ticks < batchTicks) {
+			return Collections.emptyList();
+		}
+		ticks = 0;
+		List<Transaction> batch = current;
+		current = new ArrayList<Transaction>();
+		batches++;
+		if (log != null && !batch.isEmpty()) {
+			write(batch);
+		}
+		return batch;
+	}
+
+	private void write(List<Transaction> batch) {
+		StringBuilder line = new StringBuilder();
+		line.append(batches).append(' ').append(Clock.showTime()).append(' ');
+		for (int i = 0; i < batch.size(); i++) {
+			Transaction t = batch.get(i);
+			if (i > 0) {
+				line.append(';');
+			}
+			line.append(t.getId());
+			line.append(format(t.getDeclaredReads()));
+			line.append(format(t.getDeclaredWrites()));
+		}
+		try {
+			log.write(line.toString());
+			log.write('\n');
+			log.flush();
+		} catch (IOException e) {
+			Log.warning("Cannot write batch log: " + e.getMessage());
+		}
+	}
+
+	private static String format(Iterable<String> vars) {
+		List<String> sorted = new ArrayList<String>();
+		for (String var : vars) {
+			sorted.add(var);
+		}
+		Collections.sort(sorted, Utility.VARIABLE_ORDER);
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < sorted.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(sorted.get(i));
+		}
+		return sb.append(']').toString();
+	}
+}
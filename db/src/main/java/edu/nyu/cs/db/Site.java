@@ -1,14 +1,22 @@
 package edu.nyu.cs.db;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import edu.nyu.cs.db.Transaction.STATUS;
+import edu.nyu.cs.db.TwoPhaseCommit.Vote;
 
 /**
  * Site class.
@@ -25,29 +33,30 @@ public class Site {
 
 	private boolean running = true;
 
-	private Map<String, Variable> copies = new TreeMap<String, Variable>(
-			new Comparator<String>() {
-
-				/**
-				 * Compares by variable index numeric value
-				 * 
-				 * @param arg0
-				 * @param arg1
-				 * @return
-				 */
-				public int compare(String arg0, String arg1) {
-					int v1 = Integer.parseInt(arg0.substring(1));
-					int v2 = Integer.parseInt(arg1.substring(1));
-					return v1 - v2;
-				}
-			});
+	// copies written at current site, sorted by variable index numeric
+	// value; the others hold their initial value and are created on first
+	// write
+	private ConcurrentNavigableMap<String, Variable> copies = new ConcurrentSkipListMap<String, Variable>(
+			Utility.VARIABLE_ORDER);
+
+	// replicated copies not written since recovery are invalid
+	private volatile boolean recovered = false;
+
+	private final LockTable locktable;
+
+	// <K,V>=<variable name, value>, written concurrently in deterministic mode
+	private Map<String, Integer> staged = new ConcurrentHashMap<String, Integer>();
 
-	private LockTable locktable = new LockTable();
+	// <K,V>=<variable name, id of transaction that staged it>
+	private Map<String, String> stagedBy = new ConcurrentHashMap<String, String>();
 
-	// <K,V>=<variable name, value>
-	private Map<String, Integer> staged = new HashMap<String, Integer>();
+	// <K,V>=<transaction id, writes>, prepared by two-phase commit and kept
+	// across failure until the outcome is known
+	private Map<String, Map<String, Integer>> prepared = new HashMap<String, Map<String, Integer>>();
 
-	private List<Transaction> listeners = new ArrayList<Transaction>();
+	// <K,V>=<transaction id, transaction>, transactions that accessed current
+	// site and did not end yet
+	private Map<String, Transaction> listeners = new LinkedHashMap<String, Transaction>();
 
 	/**
 	 * Constructor with site index as parameter
@@ -57,49 +66,134 @@ public class Site {
 	 */
 	public Site(int index) {
 		this.index = index;
-		// initialize variables
-		for (int i = 1; i <= DM.VAR_COUNT; i++) {
-			String var = "x" + i;
-			if (i % 2 == 0) {
-				// even indexed variables are at all sites
-				copies.put(var, new Variable(i));
-			} else {
-				// odd indexed variables are at one site each
-				if ((1 + i) % DM.SITE_COUNT == index % DM.SITE_COUNT) {
-					copies.put(var, new Variable(i));
-				}
+		this.locktable = new LockTable(index);
+	}
+
+	/**
+	 * Checks if current site holds a copy of a variable.<br/>
+	 * The odd indexed variables are at one site each. Even indexed variables
+	 * are at all sites.
+	 * 
+	 * @param i
+	 *            variable index
+	 * @return true if current site holds variable
+	 */
+	private boolean holds(int i) {
+		if (i < 1 || i > DM.VAR_COUNT) {
+			return false;
+		}
+		return i % 2 == 0 || (1 + i) % DM.SITE_COUNT == index % DM.SITE_COUNT;
+	}
+
+	/**
+	 * Returns copy of a variable, created with initial value on first call
+	 * 
+	 * @param var
+	 *            variable name
+	 * @return copy
+	 */
+	private Variable copy(String var) {
+		Variable v = copies.get(var);
+		if (v == null) {
+			int i = Utility.index(var);
+			v = new Variable(i);
+			if (i % 2 == 0 && recovered) {
+				v.inValid();
+			}
+			Variable other = copies.putIfAbsent(var, v);
+			if (other != null) {
+				v = other;
 			}
 		}
+		return v;
 	}
 
 	public boolean isRunning() {
 		return running;
 	}
 
-	public void fail() {
+	public synchronized void fail() {
 		// notify all sites
-		for (Transaction t : listeners) {
+		for (Transaction t : listeners.values()) {
 			t.state = STATUS.FAILED;
 		}
 		// clear up
 		this.listeners.clear();
 		this.staged.clear();
+		this.stagedBy.clear();
 		this.locktable.clear();
+		TM.instance().readCache().clear();
+		TM.instance().scheduler().wakeAll();
 		this.running = false;
 	}
 
 	public void recovery() {
 		// all non-replicated variables are available for reads and writes
 		// all replicated variables are available for writes but not for reads
-		for (int i = 1; i <= DM.VAR_COUNT; i++) {
-			String var = "x" + i;
-			if (i % 2 == 0) {
+		for (Map.Entry<String, Variable> copy : copies.entrySet()) {
+			if (Utility.index(copy.getKey()) % 2 == 0) {
 				// even indexed variables are disabled until first write happens
-				copies.get(var).inValid();
+				copy.getValue().inValid();
 			}
 		}
-
+		// so are those not written yet
+		recovered = true;
+		// resolve in-doubt transactions, abort is presumed
+		resolvePrepared();
 		this.running = true;
+		TM.instance().readCache().clear();
+		TM.instance().scheduler().wakeAll();
+	}
+
+	/**
+	 * Asks coordinator about each transaction prepared at current site,
+	 * abort is presumed
+	 */
+	public synchronized void resolvePrepared() {
+		Iterator<Map.Entry<String, Map<String, Integer>>> it = prepared
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Map<String, Integer>> entry = it.next();
+			long commitTime = TM.instance().coordinator()
+					.commitTime(entry.getKey());
+			Boolean committed = TM.instance().coordinator()
+					.resolve(entry.getKey(), index);
+			if (committed == null) {
+				// decision pending, keep writes locked until commit
+				for (String varId : entry.getValue().keySet()) {
+					locktable.lock(entry.getKey(), varId, LockTable.WRITE);
+				}
+				continue;
+			}
+			if (committed) {
+				apply(entry.getValue(), commitTime);
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * @param transId
+	 *            transaction id
+	 * @return true if transaction is prepared at current site
+	 */
+	public synchronized boolean isPrepared(String transId) {
+		return prepared.containsKey(transId);
+	}
+
+	/**
+	 * Drops staged writes, locks and listener of a transaction the
+	 * transaction manager lost by restart.
+	 * 
+	 * @param transId
+	 *            transaction id
+	 */
+	public synchronized void forget(String transId) {
+		for (String varId : stagedVariables(transId)) {
+			unstage(varId);
+		}
+		locktable.releaseTransaction(transId);
+		listeners.remove(transId);
 	}
 
 	/**
@@ -112,65 +206,441 @@ public class Site {
 	 * @return true if current variable is available; return false otherwise.
 	 */
 	public boolean hasVariable(String var) {
-		return copies.containsKey(var);
+		try {
+			return var.regionMatches(true, 0, "x", 0, 1)
+					&& holds(Utility.index(var));
+		} catch (NumberFormatException e) {
+			return false;
+		}
 	}
 
 	public boolean lock(String transId, String variable, String lock) {
+		Transaction t = TM.instance().getTransaction(transId);
+		Timeline.record(t, Timeline.LOCK, index, variable);
 		// two phase locking
 		if (locktable.requireLock(transId, variable,lock)) {
 			locktable.lock(transId, variable, lock);
 			// register Transaction
-			registerListener(transId);
+			registerListener(t);
+			Timeline.record(t, Timeline.GRANT, index, variable);
 			return true;
 		}
 		return false;
 	}
 
-	private void registerListener(String transId) {
+	/**
+	 * Locks variables of a batch at current site, all or none
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param requests
+	 *            <K,V>=<variable id, lock type>
+	 * @return variables whose lock is denied, empty if all are granted
+	 */
+	public Set<String> lockAll(String transId, Map<String, String> requests) {
+		Set<String> denied = deniedLocks(transId, requests);
+		if (denied.isEmpty()) {
+			grantAll(transId, requests);
+		}
+		return denied;
+	}
+
+	/**
+	 * Checks lock requests of a batch at current site without granting them
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param requests
+	 *            <K,V>=<variable id, lock type>
+	 * @return variables whose lock would be denied
+	 */
+	public Set<String> deniedLocks(String transId, Map<String, String> requests) {
+		Transaction t = TM.instance().getTransaction(transId);
+		for (String variable : requests.keySet()) {
+			Timeline.record(t, Timeline.LOCK, index, variable);
+		}
+		return locktable.deniedLocks(transId, requests);
+	}
+
+	/**
+	 * Grants lock requests already checked by
+	 * {@link #deniedLocks(String, Map)}
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param requests
+	 *            <K,V>=<variable id, lock type>
+	 */
+	public void grantAll(String transId, Map<String, String> requests) {
 		Transaction t = TM.instance().getTransaction(transId);
-		listeners.add(t);
+		for (Map.Entry<String, String> request : requests.entrySet()) {
+			locktable.lock(transId, request.getKey(), request.getValue());
+			Timeline.record(t, Timeline.GRANT, index, request.getKey());
+		}
+		registerListener(t);
+	}
+
+	/**
+	 * Registers transaction to be failed if current site fails
+	 * 
+	 * @param t
+	 *            transaction accessing current site
+	 */
+	public synchronized void registerListener(Transaction t) {
+		listeners.put(t.getId(), t);
 	}
 
 	public int read(String variable) {
+		Metrics.instance().recordRead(index);
 		if (staged.containsKey(variable)) {
 			return staged.get(variable);
 		}
-		return copies.get(variable).value();
+		return value(variable);
+	}
+
+	/**
+	 * Reads several variables at once
+	 * 
+	 * @param variables
+	 *            variable names
+	 * @return <K,V>=<variable name, value>, in variable order
+	 */
+	public Map<String, Integer> readAll(Collection<String> variables) {
+		Map<String, Integer> values = new TreeMap<String, Integer>(
+				Utility.VARIABLE_ORDER);
+		for (String variable : variables) {
+			values.put(variable, read(variable));
+		}
+		return values;
+	}
+
+	/**
+	 * Reads committed value, ignoring staged writes
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return committed value
+	 */
+	public int readCommitted(String variable) {
+		Metrics.instance().recordRead(index);
+		return value(variable);
+	}
+
+	/**
+	 * Returns version of committed value
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return number of writes committed to the copy
+	 */
+	public int version(String variable) {
+		Variable v = copies.get(variable);
+		return v == null ? 0 : v.version();
+	}
+
+	/**
+	 * Returns timestamp of last committed write of a copy
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return commit timestamp
+	 */
+	public long commitTime(String variable) {
+		Variable v = copies.get(variable);
+		return v == null ? 0 : v.commitTime();
+	}
+
+	/**
+	 * Returns committed value of a copy, initial value if never written
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return committed value
+	 */
+	private int value(String variable) {
+		Variable v = copies.get(variable);
+		return v == null ? Variable.initialValue(Utility.index(variable)) : v
+				.value();
+	}
+
+	/**
+	 * @param variable
+	 *            variable name
+	 * @return false if copy is replicated and was not written since recovery
+	 */
+	private boolean isValid(String variable) {
+		Variable v = copies.get(variable);
+		if (v == null) {
+			return !recovered || Utility.index(variable) % 2 != 0;
+		}
+		return v.isValid();
 	}
 
 	@Override
 	public String toString() {
-		return "Site " + index + ", copies=" + copies + locktable;
+		StringBuilder values = new StringBuilder("{");
+		for (int i = 1; i <= DM.VAR_COUNT; i++) {
+			if (!holds(i)) {
+				continue;
+			}
+			String var = "x" + i;
+			if (values.length() > 1) {
+				values.append(", ");
+			}
+			values.append(var).append('=').append(
+					isValid(var) ? "" + value(var) : "invalid");
+		}
+		values.append('}');
+		return "Site " + index + ", copies=" + values + locktable;
+	}
+
+	/**
+	 * Returns last committed value of a copy with its version and commit
+	 * timestamp
+	 * 
+	 * @param variable
+	 *            variable name
+	 * @return committed value
+	 */
+	public ReadCache.Entry committed(String variable) {
+		return new ReadCache.Entry(index, value(variable), version(variable),
+				commitTime(variable));
 	}
 
 	public String getIndex() {
 		return "" + index;
 	}
 
-	public void write(String variable, int value) {
+	/**
+	 * Stages a write
+	 * 
+	 * @param transId
+	 *            id of writing transaction
+	 * @param variable
+	 *            variable name
+	 * @param value
+	 *            value written
+	 */
+	public void write(String transId, String variable, int value) {
 		// write to staged cache, but not commit yet
+		stagedBy.put(variable, transId);
 		staged.put(variable, value);
+		Metrics.instance().recordWrite(index);
+	}
+
+	/**
+	 * Stages several writes at once
+	 * 
+	 * @param transId
+	 *            id of writing transaction
+	 * @param writes
+	 *            <K,V>=<variable name, value>
+	 */
+	public void writeAll(String transId, Map<String, Integer> writes) {
+		for (String variable : writes.keySet()) {
+			stagedBy.put(variable, transId);
+		}
+		staged.putAll(writes);
+		for (int i = 0; i < writes.size(); i++) {
+			Metrics.instance().recordWrite(index);
+		}
+	}
+
+	/**
+	 * @param transId
+	 *            transaction id
+	 * @return variables staged by transaction
+	 */
+	private List<String> stagedVariables(String transId) {
+		List<String> variables = new ArrayList<String>();
+		for (Map.Entry<String, String> entry : stagedBy.entrySet()) {
+			if (transId.equals(entry.getValue())) {
+				variables.add(entry.getKey());
+			}
+		}
+		return variables;
+	}
+
+	private void unstage(String variable) {
+		staged.remove(variable);
+		stagedBy.remove(variable);
+	}
+
+	/**
+	 * Checks if transaction accessed current site
+	 * 
+	 * @param t
+	 *            transaction
+	 * @return true if transaction holds locks, staged or prepared writes
+	 */
+	public synchronized boolean isParticipant(Transaction t) {
+		if (listeners.containsKey(t.getId())
+				|| prepared.containsKey(t.getId())) {
+			return true;
+		}
+		return stagedBy.containsValue(t.getId());
+	}
+
+	/**
+	 * Prepares transaction to commit, first phase of two-phase commit
+	 * 
+	 * @param t
+	 *            transaction
+	 * @return NO if site failed; READ_ONLY if transaction wrote nothing at
+	 *         current site, its locks are released; YES otherwise, its
+	 *         writes are kept until commit or abort
+	 */
+	public Vote prepare(Transaction t) {
+		if (!running) {
+			return Vote.NO;
+		}
+		Map<String, Integer> writes = new HashMap<String, Integer>();
+		for (String varId : stagedVariables(t.getId())) {
+			writes.put(varId, staged.get(varId));
+		}
+		if (writes.isEmpty()) {
+			locktable.releaseTransaction(t.getId());
+			return Vote.READ_ONLY;
+		}
+		for (String varId : writes.keySet()) {
+			unstage(varId);
+		}
+		prepared.put(t.getId(), writes);
+		return Vote.YES;
+	}
+
+	/**
+	 * Applies committed writes of a transaction to copies
+	 * 
+	 * @param writes
+	 *            <K,V>=<variable name, value>
+	 * @param commitTime
+	 *            commit timestamp of transaction
+	 */
+	private void apply(Map<String, Integer> writes, long commitTime) {
+		for (Map.Entry<String, Integer> write : writes.entrySet()) {
+			apply(write.getKey(), write.getValue(), commitTime);
+		}
+	}
+
+	private void apply(String varId, int value, long commitTime) {
+		copy(varId).setValue(value, commitTime);
+		TM.instance().readCache().invalidate(varId);
+		TM.instance().views().apply(varId, value, commitTime);
 	}
 
 	public void commit(Transaction transaction) {
-		Set<String> stagedVariables = staged.keySet();
-		List<String> removed = new ArrayList<String>();
-		for (String varId : stagedVariables) {
-			if (transaction.containsVar(varId)) {
-				int value = staged.get(varId);
-				copies.get(varId).setValue(value);
-				// remove from staged status after committed
-				removed.add(varId);
+		long start = System.nanoTime();
+		Map<String, Integer> writes = prepared.remove(transaction.getId());
+		if (writes != null) {
+			apply(writes, transaction.commitTime);
+		}
+		for (String varId : stagedVariables(transaction.getId())) {
+			apply(varId, staged.get(varId), transaction.commitTime);
+			// remove from staged status after committed
+			unstage(varId);
+		}
+		Metrics.instance().recordSiteCommit(System.nanoTime() - start);
+	}
+
+	/**
+	 * Commits a group of prepared transactions in one pass
+	 * 
+	 * @param group
+	 *            transactions in commit order
+	 */
+	public synchronized void commit(List<Transaction> group) {
+		long start = System.nanoTime();
+		for (Transaction t : group) {
+			Map<String, Integer> writes = prepared.remove(t.getId());
+			if (writes != null) {
+				apply(writes, t.commitTime);
 			}
 		}
-		// remove committed variables
-		for (String varId : removed) {
-			staged.remove(varId);
+		Metrics.instance().recordSiteCommit(System.nanoTime() - start);
+	}
+
+	/**
+	 * @param variable
+	 *            variable name
+	 * @return transactions holding a lock on current site or on the range
+	 *         of variable
+	 */
+	public Set<String> coarseHolders(String variable) {
+		return locktable.coarseHolders(variable);
+	}
+
+	/**
+	 * Writes committed values of all copies as of a timestamp, in variable
+	 * order. No lock is taken, writes committed later are not seen.
+	 * 
+	 * @param time
+	 *            snapshot timestamp
+	 * @param out
+	 *            export
+	 * @throws IOException
+	 *             if export cannot be written
+	 */
+	public void export(long time, SnapshotExport out) throws IOException {
+		for (int i = 1; i <= DM.VAR_COUNT; i++) {
+			if (!holds(i)) {
+				continue;
+			}
+			String var = "x" + i;
+			Variable v = copies.get(var);
+			if (v == null) {
+				out.append(index, i, Variable.initialValue(i),
+						isValid(var) ? 0 : SnapshotExport.INVALID);
+			} else {
+				out.append(index, i, v.valueByTime(time),
+						v.isValid() ? v.versionByTime(time)
+								: SnapshotExport.INVALID);
+			}
+		}
+	}
+
+	/**
+	 * @return number of copies written at current site, the others are not
+	 *         materialized
+	 */
+	public int copyCount() {
+		return copies.size();
+	}
+
+	/**
+	 * Estimates heap bytes used by current site: its copies with their
+	 * history, lock table, staged and prepared writes and registered
+	 * transactions. Transactions themselves are counted by
+	 * {@link Transaction#memoryUsage()}.
+	 * 
+	 * @return estimated bytes
+	 */
+	public synchronized long memoryUsage() {
+		long bytes = MemoryUsage.align(MemoryUsage.HEADER + 4 + 2 + 6
+				* MemoryUsage.REFERENCE);
+		for (Map.Entry<String, Variable> copy : copies.entrySet()) {
+			bytes += MemoryUsage.SKIP_LIST_ENTRY
+					+ MemoryUsage.string(copy.getKey())
+					+ copy.getValue().memoryUsage();
+		}
+		bytes += locktable.memoryUsage();
+		bytes += MemoryUsage.stringIntMap(staged);
+		// keys and transaction ids are shared
+		bytes += MemoryUsage.hashMap(stagedBy.size());
+		bytes += MemoryUsage.hashMap(prepared.size());
+		for (Map.Entry<String, Map<String, Integer>> entry : prepared
+				.entrySet()) {
+			bytes += MemoryUsage.string(entry.getKey())
+					+ MemoryUsage.stringIntMap(entry.getValue());
 		}
+		bytes += MemoryUsage.hashMap(listeners.size()) + listeners.size()
+				* (MemoryUsage.LINKED_HASH_ENTRY - MemoryUsage.HASH_ENTRY);
+		return bytes;
 	}
 
-	public void releaseTransaction(String transId) {
+	public synchronized void releaseTransaction(String transId) {
 		locktable.releaseTransaction(transId);
+		listeners.remove(transId);
 	}
 
 	public boolean isInitialized(String var) {
@@ -180,30 +650,63 @@ public class Site {
 		if (staged.containsKey(var)) {
 			return true;
 		}
-		Variable v = copies.get(var);
-		return v.isValid();
+		return isValid(var);
+	}
+
+	/**
+	 * Returns variables of a range held at current site, as a view in
+	 * variable order
+	 * 
+	 * @param from
+	 *            index of first variable
+	 * @param to
+	 *            index of last variable
+	 * @return variable names, empty if site holds none of the range
+	 */
+	public Collection<String> scan(int from, int to) {
+		if (from > to) {
+			return Collections.emptySet();
+		}
+		List<String> variables = new ArrayList<String>();
+		for (int i = Math.max(1, from); i <= Math.min(DM.VAR_COUNT, to); i++) {
+			if (holds(i)) {
+				variables.add("x" + i);
+			}
+		}
+		return variables;
+	}
+
+	/**
+	 * Checks if copy holds a committed value, staged writes of other
+	 * transactions are ignored
+	 * 
+	 * @param var
+	 *            variable name
+	 * @return true if copy was not invalidated by recovery or was written
+	 *         since
+	 */
+	public boolean isCommitted(String var) {
+		return hasVariable(var) && isValid(var);
 	}
 
 	public int readInitial(String transId, String var) {
 		Variable v = copies.get(var);
 		Transaction t = TM.instance().getTransaction(transId);
 		// get value by transaction begin time
-		int beginTime = t.beginTime;
+		long beginTime = t.beginTime;
+		Metrics.instance().recordRead(index);
+		if (v == null) {
+			return Variable.initialValue(Utility.index(var));
+		}
 		return v.valueByTime(beginTime);
 	}
 
 	public void abort(Transaction transaction) {
-		Set<String> stagedVariables = staged.keySet();
-		List<String> removed = new ArrayList<String>();
-		for (String varId : stagedVariables) {
-			if (transaction.containsVar(varId)) {
-				// remove
-				removed.add(varId);
-			}
-		}
-		// remove from staged
-		for (String varId : removed) {
-			staged.remove(varId);
+		prepared.remove(transaction.getId());
+		// only writes staged by transaction, a variable it contains may be
+		// staged by another one, e.g. the holder of a lock it lost
+		for (String varId : stagedVariables(transaction.getId())) {
+			unstage(varId);
 		}
 	}
 
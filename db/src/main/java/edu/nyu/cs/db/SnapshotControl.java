@@ -0,0 +1,74 @@
+package edu.nyu.cs.db;
+
+import java.util.Iterator;
+
+import edu.nyu.cs.db.CommandFactory.R;
+import edu.nyu.cs.db.CommandFactory.W;
+import edu.nyu.cs.db.Transaction.TransactionException;
+
+/**
+ * Snapshot isolation for read-write transactions.
+ * <p>
+ * Reads take no locks: a transaction reads its own staged write if it has
+ * one, and otherwise the version committed before it began, exactly like a
+ * read-only transaction. Writes still take write locks, so two writers of the
+ * same variable are ordered by wait-die. A writer also aborts if the variable
+ * was committed by another transaction after it began (first updater wins).
+ * Readers therefore never block on writers, and writers only conflict with
+ * writers.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class SnapshotControl {
+
+	/**
+	 * Reads variable from first available copy at transaction snapshot
+	 *
+	 * @param read
+	 *            read command
+	 * @return false if no copy is available
+	 */
+	public boolean read(R read) {
+		Transaction t = TM.instance().getTransaction(read.arg1);
+		String var = read.arg2;
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning() || !site.isInitialized(var)) {
+				continue;
+			}
+			if (!t.containsVar(var)) {
+				return read.execute(site, true);
+			}
+			// current transaction holds the write lock, read own write
+			int value = site.read(var);
+			Log.print_read(site, var, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks write-write conflict with transactions committed after current
+	 * transaction began
+	 *
+	 * @param write
+	 *            write command
+	 * @throws TransactionException
+	 *             if a newer version of variable is committed
+	 */
+	public void checkWrite(W write) throws TransactionException {
+		Transaction t = TM.instance().getTransaction(write.arg1);
+		String var = write.arg2;
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (site.isRunning() && site.hasVariable(var)
+					&& site.commitTime(var) > t.beginTime) {
+				throw new TransactionException(t, "write-write conflict on "
+						+ var);
+			}
+		}
+	}
+}
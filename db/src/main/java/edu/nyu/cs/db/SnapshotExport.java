@@ -0,0 +1,414 @@
+package edu.nyu.cs.db;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Columnar export of committed values of all sites.
+ * <p>
+ * The file starts with a header: magic <code>TDBS</code>, format version,
+ * snapshot timestamp and rows per block. Rows follow in blocks, each a row
+ * count and four columns of that many ints: site index, variable index,
+ * committed value and version. A block of 0 rows and the total row count
+ * end the file. Rows are ordered by site, then by variable.
+ * <p>
+ * {@link #start(String)} takes the snapshot timestamp and the running sites
+ * on the command thread and writes the file on a thread of its own. Values
+ * are read as of the snapshot timestamp from the history of each copy,
+ * which is safe to read while it is written, so commands go on during
+ * export and writes committed after the timestamp are not seen. A
+ * replicated copy not readable since its site recovered has version
+ * {@link #INVALID}; validity is read during export. Sites failed at the
+ * timestamp are skipped.
+ * <p>
+ * Columns are buffered off heap and written with one gathering write per
+ * block. {@link Reader} streams a file back block by block, and
+ * {@link #main(String[])} diffs two files without loading either.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class SnapshotExport implements Closeable {
+
+	public static final int MAGIC = 0x54444253;
+
+	public static final int FORMAT = 1;
+
+	// version of a copy not readable since recovery
+	public static final int INVALID = -1;
+
+	// site, variable, value, version
+	private static final int COLUMNS = 4;
+
+	// exports started and not awaited yet
+	private static final List<Thread> running = new ArrayList<Thread>();
+
+	private static final int BLOCK_ROWS = 1 << 14;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer header = ByteBuffer.allocateDirect(4);
+
+	private final ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+
+	private final IntBuffer[] views = new IntBuffer[COLUMNS];
+
+	private int rows = 0;
+
+	private long total = 0;
+
+	/**
+	 * Opens export file and writes its header
+	 *
+	 * @param path
+	 *            output file
+	 * @param time
+	 *            snapshot timestamp
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	public SnapshotExport(String path, long time) throws IOException {
+		this.channel = new FileOutputStream(path).getChannel();
+		for (int i = 0; i < COLUMNS; i++) {
+			columns[i] = ByteBuffer.allocateDirect(BLOCK_ROWS * 4);
+			views[i] = columns[i].asIntBuffer();
+		}
+		ByteBuffer start = ByteBuffer.allocate(20);
+		start.putInt(MAGIC).putInt(FORMAT).putLong(time).putInt(BLOCK_ROWS);
+		start.flip();
+		write(start);
+	}
+
+	/**
+	 * Exports committed values of all running sites as of now, in the
+	 * background. Completion or failure is logged.
+	 *
+	 * @param path
+	 *            output file
+	 * @return export thread, already started
+	 */
+	public static Thread start(final String path) {
+		final long time = TimestampOracle.instance().next();
+		final List<Site> sites = new ArrayList<Site>();
+		for (Site site : DM.instance()) {
+			if (site.isRunning()) {
+				sites.add(site);
+			}
+		}
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					long rows = export(path, time, sites);
+					Log.print("Exported " + rows + " copies to " + path);
+				} catch (IOException e) {
+					Log.warning("Cannot export snapshot to " + path + ": "
+							+ e.getMessage());
+				}
+			}
+		}, "snapshot-export");
+		synchronized (running) {
+			running.add(thread);
+		}
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Waits for exports started so far to finish
+	 */
+	public static void await() {
+		List<Thread> threads;
+		synchronized (running) {
+			threads = new ArrayList<Thread>(running);
+			running.clear();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Exports committed values of given sites
+	 *
+	 * @param path
+	 *            output file
+	 * @param time
+	 *            snapshot timestamp
+	 * @param sites
+	 *            sites to export, in site order
+	 * @return number of rows written
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	public static long export(String path, long time, List<Site> sites)
+			throws IOException {
+		SnapshotExport out = new SnapshotExport(path, time);
+		try {
+			for (Site site : sites) {
+				site.export(time, out);
+			}
+		} finally {
+			out.close();
+		}
+		return out.total;
+	}
+
+	/**
+	 * Appends a row
+	 *
+	 * @param site
+	 *            site index
+	 * @param variable
+	 *            variable index
+	 * @param value
+	 *            committed value
+	 * @param version
+	 *            number of committed writes, or {@link #INVALID}
+	 * @throws IOException
+	 *             if a full block cannot be written
+	 */
+	public void append(int site, int variable, int value, int version)
+			throws IOException {
+		views[0].put(site);
+		views[1].put(variable);
+		views[2].put(value);
+		views[3].put(version);
+		if (++rows == BLOCK_ROWS) {
+			flushBlock();
+		}
+	}
+
+	private void flushBlock() throws IOException {
+		header.clear();
+		header.putInt(rows);
+		header.flip();
+		ByteBuffer[] block = new ByteBuffer[COLUMNS + 1];
+		block[0] = header;
+		for (int i = 0; i < COLUMNS; i++) {
+			columns[i].clear();
+			columns[i].limit(rows * 4);
+			block[i + 1] = columns[i];
+			views[i].clear();
+		}
+		long remaining = 4 + (long) rows * 4 * COLUMNS;
+		while (remaining > 0) {
+			remaining -= channel.write(block);
+		}
+		total += rows;
+		rows = 0;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes last block and end of file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (rows > 0) {
+				flushBlock();
+			}
+			ByteBuffer end = ByteBuffer.allocate(12);
+			end.putInt(0).putLong(total);
+			end.flip();
+			write(end);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Streams rows of an export file, one block in memory at a time.
+	 */
+	public static class Reader implements Closeable {
+
+		public final long time;
+
+		private final FileChannel channel;
+
+		private final ByteBuffer block;
+
+		private final IntBuffer[] columns = new IntBuffer[COLUMNS];
+
+		private int rows = 0;
+
+		private int row = -1;
+
+		private boolean finished = false;
+
+		/**
+		 * Opens export file and reads its header
+		 *
+		 * @param path
+		 *            export file
+		 * @throws IOException
+		 *             if file cannot be read or is not an export
+		 */
+		public Reader(String path) throws IOException {
+			this.channel = new FileInputStream(path).getChannel();
+			ByteBuffer start = read(20);
+			if (start.getInt() != MAGIC || start.getInt() != FORMAT) {
+				channel.close();
+				throw new IOException(path + " is not a snapshot export");
+			}
+			this.time = start.getLong();
+			this.block = ByteBuffer.allocateDirect(start.getInt() * 4
+					* COLUMNS);
+		}
+
+		/**
+		 * Moves to next row
+		 *
+		 * @return false at end of file
+		 * @throws IOException
+		 *             if file cannot be read
+		 */
+		public boolean next() throws IOException {
+			if (++row < rows) {
+				return true;
+			}
+			if (finished) {
+				return false;
+			}
+			rows = read(4).getInt();
+			row = 0;
+			if (rows == 0) {
+				finished = true;
+				return false;
+			}
+			block.clear();
+			block.limit(rows * 4 * COLUMNS);
+			fill(block);
+			for (int i = 0; i < COLUMNS; i++) {
+				block.limit((i + 1) * rows * 4);
+				block.position(i * rows * 4);
+				columns[i] = block.slice().asIntBuffer();
+			}
+			return true;
+		}
+
+		public int site() {
+			return columns[0].get(row);
+		}
+
+		public int variable() {
+			return columns[1].get(row);
+		}
+
+		public int value() {
+			return columns[2].get(row);
+		}
+
+		public int version() {
+			return columns[3].get(row);
+		}
+
+		private ByteBuffer read(int bytes) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(bytes);
+			fill(buffer);
+			return buffer;
+		}
+
+		private void fill(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("snapshot export is truncated");
+				}
+			}
+			buffer.flip();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Prints differences between two exports, both streamed
+	 *
+	 * @param args
+	 *            old export and new export
+	 * @throws IOException
+	 *             if a file cannot be read
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: SnapshotExport <old> <new>");
+			return;
+		}
+		Reader before = new Reader(args[0]);
+		Reader after = new Reader(args[1]);
+		long differences = 0;
+		try {
+			boolean hasBefore = before.next();
+			boolean hasAfter = after.next();
+			while (hasBefore || hasAfter) {
+				int order = !hasBefore ? 1 : !hasAfter ? -1 : compare(before,
+						after);
+				if (order < 0) {
+					Log.print("Site " + before.site() + ", x"
+							+ before.variable() + ": " + show(before)
+							+ " -> none");
+					differences++;
+					hasBefore = before.next();
+				} else if (order > 0) {
+					Log.print("Site " + after.site() + ", x" + after.variable()
+							+ ": none -> " + show(after));
+					differences++;
+					hasAfter = after.next();
+				} else {
+					if (before.value() != after.value()
+							|| before.version() != after.version()) {
+						Log.print("Site " + before.site() + ", x"
+								+ before.variable() + ": " + show(before)
+								+ " -> " + show(after));
+						differences++;
+					}
+					hasBefore = before.next();
+					hasAfter = after.next();
+				}
+			}
+		} finally {
+			before.close();
+			after.close();
+		}
+		Log.print(differences + " differences");
+		Log.close();
+	}
+
+	private static int compare(Reader r1, Reader r2) {
+		if (r1.site() != r2.site()) {
+			return r1.site() < r2.site() ? -1 : 1;
+		}
+		if (r1.variable() != r2.variable()) {
+			return r1.variable() < r2.variable() ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static String show(Reader r) {
+		return r.version() == INVALID ? r.value() + " (invalid)" : r.value()
+				+ " (version " + r.version() + ")";
+	}
+}
@@ -3,18 +3,29 @@
  */
 package edu.nyu.cs.db;
 
-import java.awt.BufferCapabilities;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import edu.nyu.cs.db.Command.TransactionCommand;
+import edu.nyu.cs.db.CommandFactory.Abort;
+import edu.nyu.cs.db.CommandFactory.Begin;
 import edu.nyu.cs.db.CommandFactory.R;
+import edu.nyu.cs.db.CommandFactory.RScan;
+import edu.nyu.cs.db.CommandFactory.RV;
+import edu.nyu.cs.db.CommandFactory.RW;
 import edu.nyu.cs.db.CommandFactory.W;
 import edu.nyu.cs.db.Transaction.TransactionException;
 
@@ -22,27 +33,60 @@ import edu.nyu.cs.db.Transaction.TransactionException;
  * Transaction Manager.
  * <p>
  * Transaction Manager translates read and write requests on variables to read
- * and write requests on copies using ``available copy algorithm''. Transaction
- * Manager never fails.
+ * and write requests on copies using ``available copy algorithm''.
+ * <p>
+ * Begin and commit of read-write transactions are written to a
+ * {@link CommitLog}, so that Transaction Manager can be restarted: it then
+ * forgets everything but its log, aborts transactions that began but did not
+ * commit, and finishes commits that some participant did not acknowledge.
  * 
  * @author Daniel Wu
  * 
  */
 public class TM {
 
-	private Queue<Command> bufferedCommands;
+	private final Scheduler scheduler = new Scheduler();
 
 	// <K,V>=<Transaction Id, transaction>
 	private Map<String, Transaction> transactions;
 
 	private static TM instance = null;
 
+	private final Protocol protocol = Protocol.configured();
+
+	private final OptimisticControl optimistic = new OptimisticControl();
+
+	private final SnapshotControl snapshot = new SnapshotControl();
+
+	private final ConservativeLocking conservative = new ConservativeLocking();
+
+	private final AdmissionControl admission = new AdmissionControl();
+
+	private DeterministicEngine deterministic = null;
+
+	private final TwoPhaseCommit coordinator = new TwoPhaseCommit();
+
+	private final GroupCommit groupCommit = new GroupCommit(protocol);
+
+	private final ReadCache readCache = new ReadCache();
+
+	// survive restart
+	private final CommitLog log;
+
+	private final Views views;
+
 	/**
-	 * Default constructor
+	 * Constructor
+	 * 
+	 * @param log
+	 *            log of transaction manager
+	 * @param views
+	 *            aggregate views
 	 */
-	private TM() {
+	private TM(CommitLog log, Views views) {
+		this.log = log;
+		this.views = views;
 		this.transactions = new HashMap<String, Transaction>();
-		this.bufferedCommands = new LinkedList<Command>();
 	}
 
 	/**
@@ -52,11 +96,64 @@ public class TM {
 	 */
 	public static TM instance() {
 		if (instance == null) {
-			instance = new TM();
+			instance = new TM(new CommitLog(), new Views());
 		}
 		return instance;
 	}
 
+	/**
+	 * Restarts transaction manager from its log. Active transactions are
+	 * lost: those not committed are aborted at the sites, abort is presumed;
+	 * commit decisions not acknowledged by all participants are restored.
+	 */
+	public static void restart() {
+		TM old = instance();
+		old.groupCommit.discard();
+		old.coordinator.shutdown();
+		instance = new TM(old.log, old.views);
+		instance.recover();
+	}
+
+	private void recover() {
+		int aborted = 0;
+		int restored = 0;
+		for (Map.Entry<String, String[]> entry : log.recover().entrySet()) {
+			String transId = entry.getKey();
+			String[] record = entry.getValue();
+			if (record[0].equals(CommitLog.COMMIT)) {
+				Set<Integer> pending = new HashSet<Integer>();
+				for (Site site : DM.instance()) {
+					if (site.isPrepared(transId)) {
+						pending.add(site.index);
+					}
+				}
+				if (pending.isEmpty()) {
+					log.end(transId);
+				} else {
+					coordinator.restore(transId, Long.parseLong(record[3]),
+							pending);
+					restored++;
+				}
+			} else {
+				for (Site site : DM.instance()) {
+					site.forget(transId);
+				}
+				log.end(transId);
+				Log.print("Transaction " + transId + " aborted by TM restart");
+				aborted++;
+			}
+		}
+		// prepared writes at running sites are committed or dropped now,
+		// failed sites resolve theirs when they recover
+		for (Site site : DM.instance()) {
+			if (site.isRunning()) {
+				site.resolvePrepared();
+			}
+		}
+		Log.print("TM restarted, " + aborted + " transactions aborted, "
+				+ restored + " commits restored");
+	}
+
 	/**
 	 * Translates read and write requests on variables to read and write
 	 * requests on copies using ``available copy algorithm''.
@@ -65,17 +162,27 @@ public class TM {
 	 *            co-temporous commands
 	 */
 	public void process(Command[] commands) {
+		if (protocol == Protocol.DETERMINISTIC) {
+			if (deterministic == null) {
+				deterministic = new DeterministicEngine();
+			}
+			deterministic.process(commands);
+			log.checkpoint();
+			return;
+		}
 		Queue<Command> commandQueue = appendToQueue(commands);
 		processQueue(commandQueue);
-
+		// a command may have restarted transaction manager
+		TM tm = instance();
+		tm.groupCommit.tick();
+		tm.log.checkpoint();
+		Metrics.instance().recordBuffered(tm.scheduler.size());
 	}
 
 	private Queue<Command> appendToQueue(Command[] commands) {
 		Queue<Command> queue = new LinkedList<Command>();
-		// append historical commands
-		while (!bufferedCommands.isEmpty()) {
-			queue.offer(bufferedCommands.poll());
-		}
+		// append woken up commands
+		queue.addAll(scheduler.drainReady());
 		for (Command command : commands) {
 			queue.offer(command);
 		}
@@ -90,6 +197,14 @@ public class TM {
 			if (!command.isTransRequired()) {
 				// execute directly
 				command.execute();
+				if (command instanceof Begin) {
+					admit(new Admission(command.arg1));
+				}
+				if (instance != this) {
+					// restarted, rest of tick goes to new transaction manager
+					instance.processQueue(commands);
+					return;
+				}
 				continue;
 			}
 			/*
@@ -102,7 +217,23 @@ public class TM {
 			// if transaction does not exist
 			if (t == null) {
 				Log.warning("Transaction " + transId + " does not exist");
-				return;
+				continue;
+			}
+			if (command instanceof Admission) {
+				if (admit((Admission) command)) {
+					// run commands queued behind admission first
+					Queue<Command> rest = new LinkedList<Command>(
+							scheduler.remove(transId));
+					rest.addAll(commands);
+					commands.clear();
+					commands.addAll(rest);
+				}
+				continue;
+			}
+			if (!t.isAdmitted() && !(command instanceof Abort)) {
+				// queued behind admission
+				scheduler.block((TransactionCommand) command, declared(t));
+				continue;
 			}
 			// translate operation on variables to request on copies
 			try {
@@ -110,7 +241,7 @@ public class TM {
 			} catch (TransactionException e) {
 				// abort current transaction
 				abort(transId);
-				Log.abort(t);
+				Log.abort(t, e.getMessage());
 			}
 		}
 	}
@@ -127,7 +258,40 @@ public class TM {
 	 * @throws TransactionException
 	 */
 	private void translate(Command command) throws TransactionException {
-		if (command instanceof R) {
+		if (command instanceof RW && protocol != Protocol.LOCKING) {
+			// validated or versioned per variable, run one by one
+			for (Command single : ((RW) command).expand()) {
+				translate(single);
+			}
+		} else if (command instanceof RW) {
+			translateBatch((RW) command);
+		} else if (command instanceof RScan && protocol != Protocol.LOCKING) {
+			for (Command single : ((RScan) command).expand()) {
+				translate(single);
+			}
+		} else if (command instanceof RScan) {
+			translateScan((RScan) command);
+		} else if (command instanceof RV) {
+			translateView((RV) command);
+		} else if (protocol == Protocol.OPTIMISTIC && command instanceof R) {
+			// read without locks, wait only if no copy is available
+			if (!optimistic.read((R) command)) {
+				Log.print_wait(getTransaction(command.arg1));
+				scheduler.block((R) command);
+			}
+		} else if (protocol == Protocol.OPTIMISTIC && command instanceof W) {
+			optimistic.write((W) command);
+		} else if (protocol == Protocol.SNAPSHOT && command instanceof R) {
+			// read from version chain, never blocked by writers
+			if (!snapshot.read((R) command)) {
+				Log.print_wait(getTransaction(command.arg1));
+				scheduler.block((R) command);
+			}
+		} else if (protocol == Protocol.SNAPSHOT && command instanceof W) {
+			// first updater wins, then lock like any writer
+			snapshot.checkWrite((W) command);
+			translateWrite((W) command);
+		} else if (command instanceof R) {
 			// if command is READ
 			translateRead((R) command);
 		} else if (command instanceof W) {
@@ -142,7 +306,7 @@ public class TM {
 		// iterate over available sites
 		Iterator<Site> sites = DM.instance().iterator();
 		if (isReadOnly(write)) {
-			throw new TransactionException("Current transaction is read-only");
+			throw new TransactionException("write in read-only transaction");
 		}
 		boolean success = true;
 		// issues write all sites
@@ -158,6 +322,8 @@ public class TM {
 		}
 		if (!success) {
 			waitDieProtocal(write);
+		} else {
+			granted(write);
 		}
 	}
 
@@ -166,6 +332,10 @@ public class TM {
 		Iterator<Site> sites = DM.instance().iterator();
 		// check if current transaction is read-only
 		boolean isReadOnly = isReadOnly(read);
+		if (isReadOnly && readCached(read)) {
+			granted(read);
+			return;
+		}
 		boolean successful = false;
 		while (sites.hasNext()) {
 			Site site = sites.next();
@@ -175,13 +345,375 @@ public class TM {
 			if (read.execute(site, isReadOnly)) {
 				// if site is running and read succeeds
 				successful = true;
+				if (isReadOnly) {
+					readCache.fill(site, read.arg2);
+				}
 				break;
 			}
 		}
 		if (!successful) {
 			// wait-die protocal
 			waitDieProtocal(read);
+		} else {
+			granted(read);
+		}
+	}
+
+	/**
+	 * Serves read of a read-only transaction from the read cache
+	 * 
+	 * @param read
+	 *            read command
+	 * @return true if cached value is visible to transaction and is printed
+	 */
+	private boolean readCached(R read) {
+		if (!readCache.isEnabled()) {
+			return false;
+		}
+		Transaction t = getTransaction(read.arg1);
+		ReadCache.Entry entry = readCache.get(read.arg2, t.beginTime);
+		if (entry == null) {
+			return false;
+		}
+		Log.print_read(DM.instance().getSite(entry.site), read.arg2,
+				entry.value);
+		return true;
+	}
+
+	/**
+	 * Translates batch of reads and writes to one lock request per site.
+	 * Each variable read is locked at its first available copy, each
+	 * variable written at all running copies. Reads and writes run only
+	 * after all locks are granted.
+	 * 
+	 * @param batch
+	 *            batch command
+	 * @throws TransactionException
+	 *             if transaction is read-only and batch writes, or if it
+	 *             dies under wait-die protocol
+	 */
+	private void translateBatch(RW batch) throws TransactionException {
+		Transaction t = getTransaction(batch.arg1);
+		List<String> reads = batch.getReads();
+		Map<String, Integer> writes = batch.getWrites();
+		if (t.isReadOnly() && !writes.isEmpty()) {
+			throw new TransactionException("write in read-only transaction");
+		}
+		Set<String> denied = new TreeSet<String>(Utility.VARIABLE_ORDER);
+		// <K,V>=<variable, site it is read from>
+		Map<String, Site> readFrom = new HashMap<String, Site>();
+		for (String var : reads) {
+			Site site = t.isReadOnly() ? DM.instance().committedCopy(var) : DM
+					.instance().readableCopy(var);
+			if (site == null) {
+				// no copy to read, wait for recovery
+				denied.add(var);
+			} else {
+				readFrom.put(var, site);
+			}
+		}
+		// <K,V>=<site, variables read at site>, in site order
+		Map<Site, List<String>> readsBySite = new LinkedHashMap<Site, List<String>>();
+		// <K,V>=<site, <variable, lock>>, in site order
+		Map<Site, Map<String, String>> requests = new LinkedHashMap<Site, Map<String, String>>();
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning()) {
+				continue;
+			}
+			for (String var : reads) {
+				if (readFrom.get(var) != site) {
+					continue;
+				}
+				List<String> vars = readsBySite.get(site);
+				if (vars == null) {
+					vars = new ArrayList<String>();
+					readsBySite.put(site, vars);
+				}
+				vars.add(var);
+				if (!t.isReadOnly()) {
+					request(requests, site).put(var, LockTable.READ);
+				}
+			}
+			for (String var : writes.keySet()) {
+				if (site.hasVariable(var)) {
+					// write lock covers read of same variable
+					request(requests, site).put(var, LockTable.WRITE);
+				}
+			}
+		}
+		for (Map.Entry<Site, Map<String, String>> entry : requests.entrySet()) {
+			denied.addAll(entry.getKey().lockAll(t.getId(), entry.getValue()));
+		}
+		if (!denied.isEmpty()) {
+			waitDieProtocal(batch, denied);
+			return;
+		}
+		for (Map.Entry<Site, List<String>> entry : readsBySite.entrySet()) {
+			Site site = entry.getKey();
+			Map<String, Integer> values;
+			if (t.isReadOnly()) {
+				values = new TreeMap<String, Integer>(Utility.VARIABLE_ORDER);
+				for (String var : entry.getValue()) {
+					values.put(var, readSnapshot(site, t, var));
+				}
+			} else {
+				values = site.readAll(entry.getValue());
+			}
+			Log.print_reads(site, values);
+		}
+		for (Map.Entry<Site, Map<String, String>> entry : requests.entrySet()) {
+			Site site = entry.getKey();
+			Map<String, Integer> staged = new TreeMap<String, Integer>(
+					Utility.VARIABLE_ORDER);
+			for (String var : entry.getValue().keySet()) {
+				if (writes.containsKey(var)) {
+					staged.put(var, writes.get(var));
+				}
+			}
+			site.writeAll(t.getId(), staged);
+			Log.print_writes(site, staged);
+		}
+		granted(batch);
+	}
+
+	/**
+	 * Translates range read to one scan per site. Each variable of the range
+	 * is read at its first available copy. Reads run only after read locks
+	 * at all sites are granted, and each value is printed as it is read.
+	 * 
+	 * @param scan
+	 *            scan command
+	 * @throws TransactionException
+	 *             if transaction dies under wait-die protocol
+	 */
+	private void translateScan(RScan scan) throws TransactionException {
+		Transaction t = getTransaction(scan.arg1);
+		int from = scan.getFrom();
+		int to = scan.getTo();
+		// variables of range already assigned to a site, by index
+		BitSet covered = new BitSet(to + 1);
+		// <K,V>=<site, <variable, lock>>, in site order
+		Map<Site, Map<String, String>> requests = new LinkedHashMap<Site, Map<String, String>>();
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (!site.isRunning()) {
+				continue;
+			}
+			for (String var : site.scan(from, to)) {
+				int index = Integer.parseInt(var.substring(1));
+				if (covered.get(index)) {
+					continue;
+				}
+				if (t.isReadOnly() ? site.isCommitted(var) : site
+						.isInitialized(var)) {
+					covered.set(index);
+					request(requests, site).put(var, LockTable.READ);
+				}
+			}
+		}
+		Set<String> denied = new TreeSet<String>(Utility.VARIABLE_ORDER);
+		// no copy to read, wait for recovery
+		for (int i = covered.nextClearBit(from); i <= to; i = covered
+				.nextClearBit(i + 1)) {
+			denied.add("x" + i);
+		}
+		if (!t.isReadOnly()) {
+			for (Map.Entry<Site, Map<String, String>> entry : requests
+					.entrySet()) {
+				denied.addAll(entry.getKey().lockAll(t.getId(),
+						entry.getValue()));
+			}
+		}
+		if (!denied.isEmpty()) {
+			waitDieProtocal(scan, denied);
+			return;
+		}
+		for (Map.Entry<Site, Map<String, String>> entry : requests.entrySet()) {
+			Site site = entry.getKey();
+			for (String var : entry.getValue().keySet()) {
+				int value = t.isReadOnly() ? readSnapshot(site, t, var) : site
+						.read(var);
+				Log.print_read(site, var, value);
+			}
+		}
+		granted(scan);
+	}
+
+	/**
+	 * Reads aggregate view as of begin time of a read-only transaction. A
+	 * view registered after the transaction began is computed from the
+	 * snapshot values of its variables.
+	 * 
+	 * @param read
+	 *            view read command
+	 * @throws TransactionException
+	 *             if view does not exist, if transaction is not read-only,
+	 *             or if it dies under wait-die protocol
+	 */
+	private void translateView(RV read) throws TransactionException {
+		Transaction t = getTransaction(read.arg1);
+		Views.View view = views.get(read.arg2);
+		if (view == null) {
+			throw new TransactionException("view " + read.arg2
+					+ " does not exist");
+		}
+		if (!t.isReadOnly()) {
+			// a view does not see staged writes, nor is it locked
+			throw new TransactionException(
+					"view read in read-write transaction");
+		}
+		Long value = Views.read(view, t);
+		if (value == null) {
+			// no copy to read, wait for recovery
+			Set<String> unavailable = new TreeSet<String>(
+					Utility.VARIABLE_ORDER);
+			for (String var : view.getVariables()) {
+				if (DM.instance().committedCopy(var) == null) {
+					unavailable.add(var);
+				}
+			}
+			waitDieProtocal(read, unavailable);
+			return;
 		}
+		Log.print_read_view(view.name, value);
+		granted(read);
+	}
+
+	/**
+	 * Reads value of a variable at the snapshot of a read-only transaction,
+	 * from the read cache if possible
+	 * 
+	 * @param site
+	 *            site holding a committed copy
+	 * @param t
+	 *            read-only transaction
+	 * @param var
+	 *            variable name
+	 * @return value at transaction's begin time
+	 */
+	private int readSnapshot(Site site, Transaction t, String var) {
+		ReadCache.Entry cached = readCache.isEnabled() ? readCache.get(var,
+				t.beginTime) : null;
+		if (cached != null) {
+			return cached.value;
+		}
+		int value = site.readInitial(t.getId(), var);
+		readCache.fill(site, var);
+		return value;
+	}
+
+	private static Map<String, String> request(
+			Map<Site, Map<String, String>> requests, Site site) {
+		Map<String, String> locks = requests.get(site);
+		if (locks == null) {
+			locks = new TreeMap<String, String>(Utility.VARIABLE_ORDER);
+			requests.put(site, locks);
+		}
+		return locks;
+	}
+
+	/**
+	 * Admits beginning read-write transaction if admission control has a
+	 * slot for it, then, if it is conservative, acquires its declared locks.
+	 * Otherwise queues it until a slot is handed to it or a variable it
+	 * waits on is released.
+	 * 
+	 * @param request
+	 *            admission request of transaction
+	 * @return true if transaction is admitted
+	 */
+	private boolean admit(Admission request) {
+		Transaction t = getTransaction(request.arg1);
+		if (!admission.acquire(t)) {
+			t.setAdmitted(false);
+			Log.print_queued(t, "admission");
+			Metrics.instance().recordAdmissionWait();
+			admission.enqueue(request, t.getPriority());
+			return false;
+		}
+		if (protocol != Protocol.LOCKING || !t.isDeclared()) {
+			t.setAdmitted(true);
+			return true;
+		}
+		Set<String> denied = conservative.admit(t);
+		if (denied.isEmpty()) {
+			granted(request);
+			return true;
+		}
+		if (request.waitSince == 0) {
+			Log.print_queued(t, "declared locks");
+			request.waitSince = System.nanoTime();
+			Metrics.instance().recordLockWait();
+		}
+		scheduler.block(request, denied);
+		return false;
+	}
+
+	private static Set<String> declared(Transaction t) {
+		Set<String> vars = new TreeSet<String>(Utility.VARIABLE_ORDER);
+		if (t.isDeclared()) {
+			vars.addAll(t.getDeclaredReads());
+			vars.addAll(t.getDeclaredWrites());
+		}
+		return vars;
+	}
+
+	/**
+	 * Admission of a conservative transaction, retried by scheduler like
+	 * any blocked command
+	 */
+	private static class Admission extends TransactionCommand {
+
+		public Admission(String transId) {
+			super(transId);
+		}
+
+		@Override
+		public String toString() {
+			return "Admission(" + arg1 + ")";
+		}
+	}
+
+	private void granted(TransactionCommand command) {
+		if (command.waitSince != 0) {
+			Metrics.instance().recordLockGranted(
+					System.nanoTime() - command.waitSince);
+		}
+	}
+
+	/**
+	 * Validates transaction under current protocol before it commits
+	 * 
+	 * @param t
+	 *            transaction at end
+	 * @return true if transaction can commit
+	 */
+	public boolean validate(Transaction t) {
+		if (protocol == Protocol.OPTIMISTIC) {
+			return optimistic.validate(t);
+		}
+		return true;
+	}
+
+	/**
+	 * @return commit coordinator
+	 */
+	public TwoPhaseCommit coordinator() {
+		return coordinator;
+	}
+
+	/**
+	 * @return commit stage of prepared transactions
+	 */
+	public GroupCommit groupCommit() {
+		return groupCommit;
+	}
+
+	public Protocol getProtocol() {
+		return protocol;
 	}
 
 	private boolean isReadOnly(TransactionCommand read) {
@@ -190,21 +722,42 @@ public class TM {
 
 	private void waitDieProtocal(TransactionCommand command)
 			throws TransactionException {
+		waitDieProtocal(command, Collections.singleton(command.arg2));
+	}
+
+	private void waitDieProtocal(TransactionCommand command,
+			Collection<String> varIds) throws TransactionException {
 		// current transaction
 		Transaction currentT = getTransaction(command.arg1);
-		String varId = command.arg2;
-		List<Transaction> otherTransactions = getTransactionsByVar(varId);
-		for (Transaction other : otherTransactions) {
-			// if any of the transactions that holds lock is older than current
-			// transaction, then abort current one
-			if (other.older(currentT)) {
-				throw new TransactionException(currentT,
-						"Transaction aborted by wait-die-protocal");
+		for (String varId : varIds) {
+			// an admitted conservative transaction only waits here for a
+			// declared lock lost to a site failure, and dies like any other
+			List<Transaction> otherTransactions = getTransactionsByVar(varId);
+			for (Transaction other : otherTransactions) {
+				// if any of the transactions that holds lock is older than
+				// current transaction, then abort current one
+				if (other.older(currentT)) {
+					Metrics.instance().recordWaitDieAbort();
+					Contention.instance().record(Contention.ALL_SITES, varId,
+							Contention.Event.ABORT);
+					throw new TransactionException(currentT,
+							"wait-die-protocal");
+				}
 			}
 		}
 		// otherwise, put into waiting queue
 		Log.print_wait(currentT);
-		bufferedCommands.add(command);
+		for (String varId : varIds) {
+			Timeline.record(currentT, Timeline.WAIT, -1, varId);
+			Contention.instance().record(Contention.ALL_SITES, varId,
+					Contention.Event.WAIT);
+		}
+		if (command.waitSince == 0) {
+			// a retry of a blocked command is not a new wait
+			command.waitSince = System.nanoTime();
+			Metrics.instance().recordLockWait();
+		}
+		scheduler.block(command, varIds);
 	}
 
 	/**
@@ -225,6 +778,18 @@ public class TM {
 				result.add(transaction);
 			}
 		}
+		// or holds an escalated lock covering it
+		for (Site site : DM.instance()) {
+			if (!site.isRunning() || !site.hasVariable(varId)) {
+				continue;
+			}
+			for (String transId : site.coarseHolders(varId)) {
+				Transaction holder = getTransaction(transId);
+				if (holder != null && !result.contains(holder)) {
+					result.add(holder);
+				}
+			}
+		}
 		return result;
 	}
 
@@ -237,12 +802,36 @@ public class TM {
 	public void addTransaction(Transaction t) {
 		String id = t.getId();
 		if (this.transactions.containsKey(id)) {
-			System.out
-					.println("TransactionManager already contains transaction "
-							+ id + ", command ignored ");
+			Log.print("TransactionManager already contains transaction " + id
+					+ ", command ignored ");
+			return;
 		}
 		// add in transaction
 		this.transactions.put(id, t);
+		if (!t.isReadOnly()) {
+			log.begin(t);
+		}
+	}
+
+	/**
+	 * @return active transactions
+	 */
+	public List<Transaction> getTransactions() {
+		return new ArrayList<Transaction>(this.transactions.values());
+	}
+
+	/**
+	 * @return begin time of oldest active read-only transaction, or
+	 *         {@link Long#MAX_VALUE} if there is none
+	 */
+	private long oldestReadOnly() {
+		long oldest = Long.MAX_VALUE;
+		for (Transaction t : getTransactions()) {
+			if (t.isReadOnly()) {
+				oldest = Math.min(oldest, t.beginTime);
+			}
+		}
+		return oldest;
 	}
 
 	/**
@@ -261,19 +850,41 @@ public class TM {
 
 	public void removeTransaction(String transId) {
 		assert transId != null;
-		removeCommands(transId);
-		transactions.remove(transId);
-	}
-
-	private void removeCommands(String transId) {
-		Queue<Command> newBuffer = new LinkedList<Command>();
-		while (!bufferedCommands.isEmpty()) {
-			Command c = bufferedCommands.poll();
-			if (!transId.equals(c.arg1)) {
-				newBuffer.add(c);
+		scheduler.remove(transId);
+		TransactionCommand next = admission.release(transId);
+		if (next != null) {
+			// slot handed over, admit on next tick
+			scheduler.ready(next);
+		}
+		Transaction t = transactions.remove(transId);
+		if (!coordinator.isCommitting(transId)) {
+			// otherwise ended once all participants acknowledged
+			log.end(transId);
+		}
+		if (t != null && !views.isEmpty()) {
+			// history of views is needed back to oldest read-only
+			views.trim(oldestReadOnly());
+		}
+		if (t != null) {
+			// its locks are released, wake up waiters
+			if (t.isCoarseLocked()) {
+				scheduler.wakeAll();
+			} else {
+				for (String varId : t.getVariables()) {
+					scheduler.wake(varId);
+				}
 			}
 		}
-		bufferedCommands = newBuffer;
+	}
+
+	/**
+	 * @param transId
+	 *            transaction id
+	 * @return true if a command of transaction waits for a lock or for
+	 *         admission
+	 */
+	public boolean isWaiting(String transId) {
+		return scheduler.isWaiting(transId);
 	}
 
 	/**
@@ -284,13 +895,34 @@ public class TM {
 	 * @return true if still command not execute at commit time
 	 */
 	public boolean checkTimeout(String transId) {
-		Iterator<Command> it = bufferedCommands.iterator();
-		while (it.hasNext()) {
-			Command c = it.next();
-			if (transId.equals(c.arg1)) {
-				return true;
-			}
-		}
-		return false;
+		return scheduler.isWaiting(transId);
+	}
+
+	/**
+	 * @return cache of committed values read by read-only transactions
+	 */
+	public ReadCache readCache() {
+		return readCache;
+	}
+
+	/**
+	 * @return log of transaction manager
+	 */
+	public CommitLog commitLog() {
+		return log;
+	}
+
+	/**
+	 * @return aggregate views maintained on commit
+	 */
+	public Views views() {
+		return views;
+	}
+
+	/**
+	 * @return scheduler of blocked commands
+	 */
+	public Scheduler scheduler() {
+		return scheduler;
 	}
 }
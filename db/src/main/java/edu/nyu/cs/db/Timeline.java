@@ -0,0 +1,279 @@
+package edu.nyu.cs.db;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import edu.nyu.cs.db.MainClass.Clock;
+
+/**
+ * Execution timeline of transactions.
+ * <p>
+ * When tracing is on, each transaction started records its begin, lock
+ * attempts, waits, grants and its commit or abort into primitive arrays,
+ * together with the tick and a nanosecond timestamp. Finished transactions
+ * are kept in a bounded history that can be exported as a Chrome trace
+ * (<code>chrome://tracing</code> or Perfetto) JSON file.
+ * <p>
+ * Tracing is switched with <code>db.trace</code> or at runtime with the
+ * <code>Trace(on)</code>, <code>Trace(off)</code> and
+ * <code>Trace(export, file)</code> commands.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Timeline {
+
+	public static final byte BEGIN = 0;
+
+	public static final byte LOCK = 1;
+
+	public static final byte GRANT = 2;
+
+	public static final byte WAIT = 3;
+
+	public static final byte COMMIT = 4;
+
+	public static final byte ABORT = 5;
+
+	private static final String[] NAMES = { "begin", "lock", "grant", "wait",
+			"commit", "abort" };
+
+	private static volatile boolean enabled = Config.getBoolean(
+			Config.TRACE, false);
+
+	private static final int capacity = Config.getInt(
+			Config.TRACE_CAPACITY, 10000);
+
+	// finished transactions, oldest first
+	private static final Deque<Events> finished = new ArrayDeque<Events>();
+
+	private static int sequence = 0;
+
+	private Timeline() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Starts a trace for a new transaction
+	 *
+	 * @param transId
+	 *            transaction id
+	 * @return event list, or null if tracing is off
+	 */
+	public static Events begin(String transId) {
+		if (!enabled) {
+			return null;
+		}
+		Events events = new Events(transId, ++sequence);
+		events.add(BEGIN, -1, null);
+		return events;
+	}
+
+	/**
+	 * Records an event of a transaction
+	 *
+	 * @param t
+	 *            transaction, ignored if it is not traced
+	 * @param type
+	 *            event type
+	 * @param site
+	 *            site index, or -1
+	 * @param variable
+	 *            variable id, or null
+	 */
+	public static void record(Transaction t, byte type, int site,
+			String variable) {
+		if (t == null || t.trace == null || !enabled) {
+			return;
+		}
+		t.trace.add(type, site, variable);
+	}
+
+	/**
+	 * Records commit or abort and moves the trace into history
+	 *
+	 * @param t
+	 *            transaction, ignored if it is not traced
+	 * @param committed
+	 *            true if transaction committed
+	 */
+	public static void finish(Transaction t, boolean committed) {
+		if (t == null || t.trace == null) {
+			return;
+		}
+		t.trace.add(committed ? COMMIT : ABORT, -1, null);
+		synchronized (finished) {
+			finished.addLast(t.trace);
+			while (finished.size() > capacity) {
+				finished.removeFirst();
+			}
+		}
+		t.trace = null;
+	}
+
+	/**
+	 * Exports finished transactions as Chrome trace JSON
+	 *
+	 * @param path
+	 *            output file
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	public static void export(String path) throws IOException {
+		List<Events> traces;
+		synchronized (finished) {
+			traces = new ArrayList<Events>(finished);
+		}
+		long origin = Long.MAX_VALUE;
+		for (Events events : traces) {
+			origin = Math.min(origin, events.nanos[0]);
+		}
+		Writer out = new BufferedWriter(new FileWriter(path), 1 << 16);
+		try {
+			out.write("{\"traceEvents\":[");
+			boolean first = true;
+			for (Events events : traces) {
+				first = events.writeJson(out, origin, first);
+			}
+			out.write("\n],\"displayTimeUnit\":\"ns\"}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Events of one transaction, stored column-wise in primitive arrays.
+	 */
+	public static class Events {
+
+		private final String transId;
+
+		private final int tid;
+
+		private int size = 0;
+
+		private byte[] types = new byte[16];
+
+		private long[] ticks = new long[16];
+
+		private long[] nanos = new long[16];
+
+		private int[] sites = new int[16];
+
+		private String[] variables = new String[16];
+
+		private Events(String transId, int tid) {
+			this.transId = transId;
+			this.tid = tid;
+		}
+
+		private void add(byte type, int site, String variable) {
+			if (size == types.length) {
+				grow();
+			}
+			types[size] = type;
+			ticks[size] = Clock.showTime();
+			nanos[size] = System.nanoTime();
+			sites[size] = site;
+			variables[size] = variable;
+			size++;
+		}
+
+		private void grow() {
+			int length = types.length * 2;
+			byte[] newTypes = new byte[length];
+			long[] newTicks = new long[length];
+			long[] newNanos = new long[length];
+			int[] newSites = new int[length];
+			String[] newVariables = new String[length];
+			System.arraycopy(types, 0, newTypes, 0, size);
+			System.arraycopy(ticks, 0, newTicks, 0, size);
+			System.arraycopy(nanos, 0, newNanos, 0, size);
+			System.arraycopy(sites, 0, newSites, 0, size);
+			System.arraycopy(variables, 0, newVariables, 0, size);
+			types = newTypes;
+			ticks = newTicks;
+			nanos = newNanos;
+			sites = newSites;
+			variables = newVariables;
+		}
+
+		/**
+		 * Writes transaction as a span, waits as nested spans and lock
+		 * events as instants
+		 */
+		private boolean writeJson(Writer out, long origin, boolean first)
+				throws IOException {
+			boolean waiting = false;
+			for (int i = 0; i < size; i++) {
+				byte type = types[i];
+				String name;
+				String phase;
+				if (type == BEGIN) {
+					name = transId;
+					phase = "B";
+				} else if (type == COMMIT || type == ABORT) {
+					if (waiting) {
+						first = writeEvent(out, first, "wait", "E", i, origin);
+						waiting = false;
+					}
+					name = transId;
+					phase = "E";
+				} else if (type == WAIT) {
+					if (waiting) {
+						// still waiting, retried in a later tick
+						name = "wait " + variables[i];
+						phase = "i";
+					} else {
+						name = "wait";
+						phase = "B";
+						waiting = true;
+					}
+				} else {
+					if (type == GRANT && waiting) {
+						first = writeEvent(out, first, "wait", "E", i, origin);
+						waiting = false;
+					}
+					name = NAMES[type] + " " + variables[i];
+					phase = "i";
+				}
+				first = writeEvent(out, first, name, phase, i, origin);
+			}
+			return first;
+		}
+
+		private boolean writeEvent(Writer out, boolean first, String name,
+				String phase, int i, long origin) throws IOException {
+			out.write(first ? "\n" : ",\n");
+			out.write("{\"name\":\"" + name + "\",\"cat\":\"" + NAMES[types[i]]
+					+ "\",\"ph\":\"" + phase + "\",");
+			if ("i".equals(phase)) {
+				out.write("\"s\":\"t\",");
+			}
+			out.write("\"ts\":" + (nanos[i] - origin) / 1000.0
+					+ ",\"pid\":1,\"tid\":" + tid + ",\"args\":{\"tick\":"
+					+ ticks[i]);
+			if (sites[i] > 0) {
+				out.write(",\"site\":" + sites[i]);
+			}
+			if (variables[i] != null) {
+				out.write(",\"variable\":\"" + variables[i] + "\"");
+			}
+			out.write("}}");
+			return false;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package edu.nyu.cs.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamp oracle.
+ * <p>
+ * Issues 64-bit timestamps that are unique across threads. A timestamp is a
+ * hybrid of the logical tick, advanced once per input line, in its high bits
+ * and a counter within the tick in its low {@link #COUNTER_BITS} bits, so
+ * comparing timestamps orders events first by tick and then by the order
+ * they were issued.
+ * <p>
+ * Threads don't contend on one counter for every timestamp: each thread
+ * takes a range of <code>db.timestamp.range</code> timestamps at once and
+ * issues them locally. Timestamps of one thread are increasing; timestamps of
+ * different threads within one tick are ordered by range, not by real time.
+ * Timestamp 0 is the time of initial values.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class TimestampOracle {
+
+	// low bits of a timestamp counting within a tick
+	public static final int COUNTER_BITS = 24;
+
+	private static final TimestampOracle instance = new TimestampOracle();
+
+	// next timestamp not handed out in any range
+	private final AtomicLong next = new AtomicLong(1);
+
+	private volatile long tick = 0;
+
+	private final int rangeSize = Math.max(1,
+			Config.getInt(Config.TIMESTAMP_RANGE, 64));
+
+	// {next, end} of range held by current thread
+	private final ThreadLocal<long[]> range = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue() {
+			return new long[2];
+		}
+	};
+
+	private TimestampOracle() {
+	}
+
+	public static TimestampOracle instance() {
+		return instance;
+	}
+
+	/**
+	 * Advances logical tick, timestamps issued afterwards are greater than
+	 * all timestamps of earlier ticks
+	 *
+	 * @return new tick
+	 */
+	public synchronized long tick() {
+		tick++;
+		long base = tick << COUNTER_BITS;
+		long current;
+		while ((current = next.get()) < base) {
+			if (next.compareAndSet(current, base)) {
+				break;
+			}
+		}
+		return tick;
+	}
+
+	/**
+	 * @return current logical tick
+	 */
+	public long currentTick() {
+		return tick;
+	}
+
+	/**
+	 * Issues next timestamp of current thread
+	 *
+	 * @return timestamp
+	 */
+	public long next() {
+		long[] local = range.get();
+		if (local[0] >= local[1] || tickOf(local[0]) < tick) {
+			long start = next.getAndAdd(rangeSize);
+			while (tickOf(start) < tick) {
+				// tick advanced meanwhile, range is stale
+				start = next.getAndAdd(rangeSize);
+			}
+			local[0] = start;
+			local[1] = start + rangeSize;
+		}
+		return local[0]++;
+	}
+
+	/**
+	 * @param timestamp
+	 *            timestamp
+	 * @return logical tick timestamp was issued at
+	 */
+	public static long tickOf(long timestamp) {
+		return timestamp >>> COUNTER_BITS;
+	}
+}
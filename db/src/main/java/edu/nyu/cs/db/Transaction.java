@@ -1,9 +1,16 @@
 package edu.nyu.cs.db;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import edu.nyu.cs.db.MainClass.Clock;
 
 /**
  * Transaction class.
@@ -19,12 +26,26 @@ public class Transaction {
 		NEW, COMPLETED, FAILED
 	}
 
+	/**
+	 * Priority classes, in scheduling order
+	 */
+	public static enum Priority {
+		READ_ONLY, OLTP, BATCH
+	}
+
 	public STATUS state;
 
 	// transaction id
 	private String id;
 
-	public final int beginTime;
+	// timestamp at begin, orders transactions by age
+	public final long beginTime;
+
+	// System.nanoTime() at begin, for latency metrics
+	public final long beginNanos = System.nanoTime();
+
+	// timestamp of commit decision, 0 until committed
+	public long commitTime = 0;
 
 	// current operation
 	private Command command = null;
@@ -32,8 +53,34 @@ public class Transaction {
 	// read only transaction
 	private boolean isReadOnly = false;
 
-	// variables whose lock is held by current transaction
-	private Set<String> variableIds = new HashSet<String>();
+	// indexes of variables whose lock is held by current transaction
+	private final BitSet variableIds = new BitSet();
+
+	// declared read and write sets, null if not declared at begin
+	private Set<String> declaredReads = null;
+
+	private Set<String> declaredWrites = null;
+
+	private Priority priority = Priority.OLTP;
+
+	// false while transaction waits for admission or declared locks
+	private boolean admitted = true;
+
+	// true once a site escalated locks of transaction to a site or range
+	private boolean coarseLocked = false;
+
+	// <K,V>=<variable id, version read>, optimistic transactions only
+	private Map<String, Integer> readVersions = null;
+
+	// <K,V>=<variable id, index of site read from>, versions are counted
+	// per copy
+	private Map<String, Integer> readSites = null;
+
+	// <K,V>=<variable id, value>, optimistic transactions only
+	private Map<String, Integer> bufferedWrites = null;
+
+	// timeline of current transaction, null if not traced
+	Timeline.Events trace;
 
 	/**
 	 * Constructor with transaction id as parameter
@@ -43,7 +90,8 @@ public class Transaction {
 	 */
 	public Transaction(String id) {
 		this.id = id;
-		this.beginTime = Clock.showTime();
+		this.beginTime = TimestampOracle.instance().next();
+		this.trace = Timeline.begin(id);
 	}
 
 	/**
@@ -58,7 +106,11 @@ public class Transaction {
 	public Transaction(String id, boolean isReadOnly) {
 		this.id = id;
 		this.isReadOnly = isReadOnly;
-		this.beginTime = Clock.showTime();
+		if (isReadOnly) {
+			this.priority = Priority.READ_ONLY;
+		}
+		this.beginTime = TimestampOracle.instance().next();
+		this.trace = Timeline.begin(id);
 	}
 
 	public void begin() {
@@ -94,11 +146,153 @@ public class Transaction {
 	 */
 	public boolean containsVar(String varId) {
 		assert varId != null;
-		return variableIds.contains(varId);
+		return variableIds.get(Utility.index(varId));
+	}
+
+	/**
+	 * @return variables whose lock is held by current transaction, in
+	 *         variable order
+	 */
+	public List<String> getVariables() {
+		List<String> variables = new ArrayList<String>(
+				variableIds.cardinality());
+		for (int i = variableIds.nextSetBit(0); i >= 0; i = variableIds
+				.nextSetBit(i + 1)) {
+			variables.add("x" + i);
+		}
+		return variables;
 	}
 
 	public void addVaraible(String var) {
-		this.variableIds.add(var);
+		variableIds.set(Utility.index(var));
+	}
+
+	/**
+	 * Declares all variables current transaction will read and write
+	 * 
+	 * @param reads
+	 *            variables read
+	 * @param writes
+	 *            variables written
+	 */
+	public void declare(Collection<String> reads, Collection<String> writes) {
+		this.declaredReads = new HashSet<String>(reads);
+		this.declaredWrites = new HashSet<String>(writes);
+	}
+
+	/**
+	 * @return true if read and write sets are declared at begin
+	 */
+	public boolean isDeclared() {
+		return declaredReads != null;
+	}
+
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return true unless transaction still waits for admission or its
+	 *         declared locks
+	 */
+	public boolean isAdmitted() {
+		return admitted;
+	}
+
+	public void setAdmitted(boolean admitted) {
+		this.admitted = admitted;
+	}
+
+	/**
+	 * @return true if transaction holds a lock on a site or range, which
+	 *         may block variables it never accessed
+	 */
+	public boolean isCoarseLocked() {
+		return coarseLocked;
+	}
+
+	public void setCoarseLocked() {
+		this.coarseLocked = true;
+	}
+
+	public Set<String> getDeclaredReads() {
+		return declaredReads;
+	}
+
+	public Set<String> getDeclaredWrites() {
+		return declaredWrites;
+	}
+
+	/**
+	 * Remembers copy and its version of variable at first read
+	 * 
+	 * @param varId
+	 *            variable id
+	 * @param site
+	 *            index of site read from
+	 * @param version
+	 *            version read
+	 */
+	public void recordRead(String varId, int site, int version) {
+		if (readVersions == null) {
+			readVersions = new HashMap<String, Integer>();
+			readSites = new HashMap<String, Integer>();
+		}
+		if (!readVersions.containsKey(varId)) {
+			readVersions.put(varId, version);
+			readSites.put(varId, site);
+		}
+	}
+
+	/**
+	 * @param varId
+	 *            variable id
+	 * @return index of site variable was read from
+	 */
+	public int getReadSite(String varId) {
+		return readSites.get(varId);
+	}
+
+	public Map<String, Integer> getReadVersions() {
+		if (readVersions == null) {
+			return Collections.emptyMap();
+		}
+		return readVersions;
+	}
+
+	/**
+	 * Buffers write until commit
+	 * 
+	 * @param varId
+	 *            variable id
+	 * @param value
+	 *            value written
+	 */
+	public void bufferWrite(String varId, int value) {
+		if (bufferedWrites == null) {
+			bufferedWrites = new LinkedHashMap<String, Integer>();
+		}
+		bufferedWrites.put(varId, value);
+	}
+
+	/**
+	 * @param varId
+	 *            variable id
+	 * @return buffered value, or null if variable is not written
+	 */
+	public Integer getBufferedWrite(String varId) {
+		return bufferedWrites == null ? null : bufferedWrites.get(varId);
+	}
+
+	public Map<String, Integer> getBufferedWrites() {
+		if (bufferedWrites == null) {
+			return Collections.emptyMap();
+		}
+		return bufferedWrites;
 	}
 
 	public static class TransactionException extends Exception {
@@ -136,8 +330,32 @@ public class Transaction {
 	@Override
 	public String toString() {
 		return "Transaction [id=" + id + ", beginTime=" + beginTime
-				+ ", isReadOnly=" + isReadOnly + ", variableIds=" + variableIds
-				+ "]";
+				+ ", isReadOnly=" + isReadOnly + ", variableIds="
+				+ getVariables() + "]";
+	}
+
+	/**
+	 * @return estimated bytes of current transaction, its variable set and
+	 *         optimistic read and write sets
+	 */
+	public long memoryUsage() {
+		// references, longs, booleans and the BitSet
+		long bytes = MemoryUsage.align(MemoryUsage.HEADER + 12
+				* MemoryUsage.REFERENCE + 3 * 8 + 3)
+				+ MemoryUsage.align(MemoryUsage.HEADER + MemoryUsage.REFERENCE
+						+ 4 + 1)
+				+ MemoryUsage.array((variableIds.length() + 63) / 64, 8);
+		bytes += MemoryUsage.string(id);
+		if (declaredReads != null) {
+			bytes += MemoryUsage.hashMap(declaredReads.size())
+					+ MemoryUsage.strings(declaredReads);
+			bytes += MemoryUsage.hashMap(declaredWrites.size())
+					+ MemoryUsage.strings(declaredWrites);
+		}
+		bytes += MemoryUsage.stringIntMap(readVersions);
+		bytes += MemoryUsage.stringIntMap(readSites);
+		bytes += MemoryUsage.stringIntMap(bufferedWrites);
+		return bytes;
 	}
 
 	public boolean commitable() {
@@ -0,0 +1,273 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Two-phase commit coordinator.
+ * <p>
+ * The participants of a transaction are the running sites it accessed.
+ * Prepare is sent to all of them in parallel. A site votes
+ * {@link Vote#READ_ONLY} if it holds no writes of the transaction: it
+ * releases the transaction's locks at once and takes no part in the second
+ * round. A site with writes moves them into a prepared state that survives
+ * site failure and votes {@link Vote#YES}. A site that failed votes
+ * {@link Vote#NO}.
+ * <p>
+ * Prepare and commit are separate calls, so that commit decisions of several
+ * transactions can be made together by {@link GroupCommit}.
+ * <p>
+ * Abort is presumed: only commit decisions are remembered, and only until
+ * every prepared participant acknowledged them. A recovering site asks the
+ * coordinator about each transaction still prepared on it, and aborts it if
+ * no commit decision is known.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class TwoPhaseCommit {
+
+	public static enum Vote {
+		YES, NO, READ_ONLY
+	}
+
+	// <K,V>=<transaction id, prepared sites>, waiting for a decision
+	private final Map<String, Set<Integer>> undecided = new HashMap<String, Set<Integer>>();
+
+	// <K,V>=<transaction id, prepared sites not acknowledged yet>
+	private final Map<String, Set<Integer>> committing = new HashMap<String, Set<Integer>>();
+
+	// <K,V>=<transaction id, commit timestamp>, kept as long as committing
+	private final Map<String, Long> commitTimes = new HashMap<String, Long>();
+
+	private final boolean parallel = Config.getBoolean(Config.PARALLEL_PREPARE,
+			true);
+
+	private ExecutorService pool = null;
+
+	/**
+	 * Runs first phase of two-phase commit
+	 *
+	 * @param t
+	 *            transaction
+	 * @return true if all participants voted to commit, the transaction then
+	 *         waits for {@link #commit(List)}; false if it is aborted at the
+	 *         participants that prepared
+	 */
+	public boolean prepare(Transaction t) {
+		List<Site> participants = new ArrayList<Site>();
+		Iterator<Site> sites = DM.instance().iterator();
+		while (sites.hasNext()) {
+			Site site = sites.next();
+			if (site.isRunning() && site.isParticipant(t)) {
+				participants.add(site);
+			}
+		}
+		List<Vote> votes = prepare(t, participants);
+		Set<Integer> prepared = new HashSet<Integer>();
+		boolean commit = true;
+		for (int i = 0; i < votes.size(); i++) {
+			if (votes.get(i) == Vote.YES) {
+				prepared.add(participants.get(i).index);
+			} else if (votes.get(i) == Vote.NO) {
+				commit = false;
+			}
+		}
+		Metrics.instance().recordTwoPhaseCommit(
+				2 * (participants.size() + prepared.size()),
+				participants.size() - prepared.size());
+		if (!commit) {
+			// presumed abort, nothing is remembered
+			for (Integer index : prepared) {
+				Site site = DM.instance().getSite(index);
+				if (site.isRunning()) {
+					site.abort(t);
+				}
+			}
+			return false;
+		}
+		undecided.put(t.getId(), prepared);
+		return true;
+	}
+
+	/**
+	 * Runs second phase of two-phase commit for a group of prepared
+	 * transactions, each running participant commits the whole group in one
+	 * pass
+	 *
+	 * @param group
+	 *            prepared transactions, in commit order, with their commit
+	 *            timestamps
+	 */
+	public void commit(List<Transaction> group) {
+		// <K,V>=<site index, transactions prepared at site>
+		Map<Integer, List<Transaction>> bySite = new HashMap<Integer, List<Transaction>>();
+		for (Transaction t : group) {
+			Set<Integer> pending = undecided.remove(t.getId());
+			if (pending == null || pending.isEmpty()) {
+				// no participant wrote, nothing to acknowledge
+				continue;
+			}
+			committing.put(t.getId(), pending);
+			commitTimes.put(t.getId(), t.commitTime);
+			for (Integer index : pending) {
+				List<Transaction> list = bySite.get(index);
+				if (list == null) {
+					list = new ArrayList<Transaction>();
+					bySite.put(index, list);
+				}
+				list.add(t);
+			}
+		}
+		for (Map.Entry<Integer, List<Transaction>> entry : bySite.entrySet()) {
+			Site site = DM.instance().getSite(entry.getKey());
+			if (!site.isRunning()) {
+				// resolved when site recovers
+				continue;
+			}
+			site.commit(entry.getValue());
+			for (Transaction t : entry.getValue()) {
+				resolve(t.getId(), site.index);
+			}
+		}
+	}
+
+	private List<Vote> prepare(final Transaction t, List<Site> participants) {
+		List<Vote> votes = new ArrayList<Vote>();
+		if (!parallel || participants.size() < 2) {
+			for (Site site : participants) {
+				votes.add(site.prepare(t));
+			}
+			return votes;
+		}
+		List<Callable<Vote>> requests = new ArrayList<Callable<Vote>>();
+		for (final Site site : participants) {
+			requests.add(new Callable<Vote>() {
+
+				@Override
+				public Vote call() {
+					return site.prepare(t);
+				}
+			});
+		}
+		try {
+			for (Future<Vote> vote : pool().invokeAll(requests)) {
+				votes.add(vote.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		return votes;
+	}
+
+	/**
+	 * Answers a recovering participant about a transaction prepared on it
+	 *
+	 * @param transId
+	 *            transaction id
+	 * @param site
+	 *            site index of participant
+	 * @return true if transaction committed; false if it aborted; null if
+	 *         it is prepared and no decision is made yet
+	 */
+	public Boolean resolve(String transId, int site) {
+		if (undecided.containsKey(transId)) {
+			return null;
+		}
+		Set<Integer> pending = committing.get(transId);
+		if (pending == null) {
+			return Boolean.FALSE;
+		}
+		pending.remove(site);
+		if (pending.isEmpty()) {
+			committing.remove(transId);
+			commitTimes.remove(transId);
+			if (TM.instance().getTransaction(transId) == null) {
+				// acknowledged by all participants, transaction is over
+				TM.instance().commitLog().end(transId);
+			}
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * @param transId
+	 *            transaction id
+	 * @return true if transaction committed and some participant did not
+	 *         acknowledge yet
+	 */
+	public boolean isCommitting(String transId) {
+		return committing.containsKey(transId);
+	}
+
+	/**
+	 * Restores a commit decision read back from the log after restart
+	 * 
+	 * @param transId
+	 *            transaction id
+	 * @param commitTime
+	 *            commit timestamp
+	 * @param pending
+	 *            sites still holding transaction prepared
+	 */
+	public void restore(String transId, long commitTime, Set<Integer> pending) {
+		committing.put(transId, pending);
+		commitTimes.put(transId, commitTime);
+	}
+
+	/**
+	 * Returns commit timestamp of a transaction not acknowledged by all
+	 * participants yet
+	 *
+	 * @param transId
+	 *            transaction id
+	 * @return commit timestamp, 0 if unknown
+	 */
+	public long commitTime(String transId) {
+		Long time = commitTimes.get(transId);
+		return time == null ? 0 : time;
+	}
+
+	/**
+	 * Stops prepare threads, coordinator state is lost on restart and read
+	 * back from the log by the next one
+	 */
+	public synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	private synchronized ExecutorService pool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(DM.SITE_COUNT,
+					new ThreadFactory() {
+
+						private int count = 0;
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "prepare-"
+									+ (++count));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return pool;
+	}
+}
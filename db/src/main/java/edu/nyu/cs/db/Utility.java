@@ -1,7 +1,30 @@
 package edu.nyu.cs.db;
 
+import java.util.Comparator;
+
 public class Utility {
 
+	/**
+	 * Orders variable ids by variable index numeric value
+	 */
+	public static final Comparator<String> VARIABLE_ORDER = new Comparator<String>() {
+
+		public int compare(String arg0, String arg1) {
+			int v1 = index(arg0);
+			int v2 = index(arg1);
+			return v1 - v2;
+		}
+	};
+
+	/**
+	 * @param var
+	 *            variable name, e.g. x3
+	 * @return variable index
+	 */
+	public static int index(String var) {
+		return Integer.parseInt(var.substring(1));
+	}
+
 	public static String trimAll(String str) {
 		if (str == null) {
 			return "";
@@ -1,13 +1,5 @@
 package edu.nyu.cs.db;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-
-import edu.nyu.cs.db.MainClass.Clock;
-
 /**
  * Variable class.
  * <p>
@@ -20,11 +12,11 @@ public class Variable {
 
 	private int index;
 
-	private int value;
-
-	private boolean isValid;
+	private volatile boolean isValid;
 
-	private final Map<Integer, Integer> valueStack = new HashMap<Integer, Integer>();
+	// committed values and their commit timestamps; written by one thread at
+	// a time and read without locks, see History
+	private volatile History history = new History(2);
 
 	/**
 	 * Constructor with variable index as parameter.
@@ -36,9 +28,18 @@ public class Variable {
 	 */
 	public Variable(int i) {
 		this.index = i;
-		this.value = i * 10;
+		this.history.values[0] = initialValue(i);
+		this.history.size = 1;
 		this.isValid = true;
-		valueStack.put(Clock.showTime(), this.value);
+	}
+
+	/**
+	 * @param i
+	 *            variable index
+	 * @return value of variable before its first write
+	 */
+	public static int initialValue(int i) {
+		return i * 10;
 	}
 
 	/**
@@ -47,7 +48,27 @@ public class Variable {
 	 * @return variable value
 	 */
 	public int value() {
-		return this.value;
+		History h = history;
+		int size = h.size;
+		return h.values[size - 1];
+	}
+
+	/**
+	 * Returns number of writes committed to current variable
+	 * 
+	 * @return variable version
+	 */
+	public int version() {
+		return history.size - 1;
+	}
+
+	/**
+	 * @return timestamp of last committed write
+	 */
+	public long commitTime() {
+		History h = history;
+		int size = h.size;
+		return h.times[size - 1];
 	}
 
 	public boolean isValid() {
@@ -60,27 +81,122 @@ public class Variable {
 
 	@Override
 	public String toString() {
-		return isValid ? value + "" : "invalid";
+		return isValid ? value() + "" : "invalid";
 	}
 
-	public void setValue(int value) {
-		// keep history
-		valueStack.put(Clock.showTime(), value);
-		this.value = value;
+	/**
+	 * Adds a committed value to history
+	 * 
+	 * @param value
+	 *            committed value
+	 * @param commitTime
+	 *            commit timestamp of writing transaction; a transaction in
+	 *            doubt is applied when its site recovers, after younger
+	 *            writes, and is inserted at its own timestamp
+	 */
+	public void setValue(int value, long commitTime) {
+		History h = history;
+		int size = h.size;
+		if (size < h.times.length && h.times[size - 1] <= commitTime) {
+			// slot is not visible to readers until size is written
+			h.times[size] = commitTime;
+			h.values[size] = value;
+			h.size = size + 1;
+		} else {
+			// full, or written out of order: readers keep the old history
+			History copy = new History(size < h.times.length ? h.times.length
+					: size * 2);
+			int position = size;
+			while (position > 1 && h.times[position - 1] > commitTime) {
+				position--;
+			}
+			System.arraycopy(h.times, 0, copy.times, 0, position);
+			System.arraycopy(h.values, 0, copy.values, 0, position);
+			copy.times[position] = commitTime;
+			copy.values[position] = value;
+			System.arraycopy(h.times, position, copy.times, position + 1, size
+					- position);
+			System.arraycopy(h.values, position, copy.values, position + 1,
+					size - position);
+			copy.size = size + 1;
+			history = copy;
+		}
 		// variable becomes valid after initialization
 		this.isValid = true;
 	}
 
-	public int valueByTime(int beginTime) {
-		Integer[] times = valueStack.keySet().toArray(new Integer[0]);
-		Arrays.sort(times);
-		// TODO
-		for (int i = 0; i < times.length; i++) {
-			if (times[i] > beginTime) {
-				return valueStack.get(times[i - 1]);
+	/**
+	 * Returns value committed last at or before a timestamp
+	 * 
+	 * @param beginTime
+	 *            timestamp reader began at
+	 * @return committed value
+	 */
+	public int valueByTime(long beginTime) {
+		History h = history;
+		return h.values[h.versionByTime(beginTime)];
+	}
+
+	/**
+	 * Returns version committed last at or before a timestamp
+	 * 
+	 * @param beginTime
+	 *            timestamp reader began at
+	 * @return number of writes committed by then
+	 */
+	public int versionByTime(long beginTime) {
+		return history.versionByTime(beginTime);
+	}
+
+	/**
+	 * @return estimated bytes of current copy and its history
+	 */
+	public long memoryUsage() {
+		History h = history;
+		return MemoryUsage.align(MemoryUsage.HEADER + 4 + 1
+				+ MemoryUsage.REFERENCE)
+				+ MemoryUsage.align(MemoryUsage.HEADER + 4 + 2
+						* MemoryUsage.REFERENCE)
+				+ MemoryUsage.array(h.times.length, 8)
+				+ MemoryUsage.array(h.values.length, 4);
+	}
+
+	/**
+	 * Committed values and their commit timestamps, in timestamp order; the
+	 * first is the initial value at timestamp 0.
+	 * <p>
+	 * A reader reads size first and only the slots below it. A write in
+	 * order fills the next slot before it raises size; any other write
+	 * copies the history into a new one, so that published slots never
+	 * change.
+	 */
+	private static class History {
+
+		private final long[] times;
+
+		private final int[] values;
+
+		// number of values kept, version is one less
+		private volatile int size = 0;
+
+		History(int capacity) {
+			this.times = new long[capacity];
+			this.values = new int[capacity];
+		}
+
+		private int versionByTime(long beginTime) {
+			int low = 0;
+			int high = size - 1;
+			// find last value committed at or before beginTime
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (times[mid] <= beginTime) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
 			}
+			return low;
 		}
-		return this.value;
 	}
-
 }
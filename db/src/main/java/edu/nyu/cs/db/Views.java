@@ -0,0 +1,398 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregate views over variables, kept by transaction manager.
+ * <p>
+ * A view computes SUM, COUNT, MIN or MAX over a set of variables. It is
+ * registered once and maintained incrementally as sites commit writes,
+ * so reading it costs one lookup instead of a read of every variable.
+ * <p>
+ * Each committed write carries the commit timestamp of its transaction.
+ * A replicated variable is written at several sites, and a transaction in
+ * doubt is applied again when its site recovers, so a view applies a
+ * write only if it is newer than the last one it applied to the variable.
+ * Every change of the aggregate is kept with its timestamp, so that a
+ * read-only transaction reads the aggregate as of its begin time. A write
+ * in doubt may be applied after younger writes of other variables; it is
+ * inserted at its own timestamp and the changes after it are applied
+ * again. History older than the oldest active read-only transaction is
+ * dropped.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Views {
+
+	public static enum Function {
+		SUM, COUNT, MIN, MAX
+	}
+
+	// <K,V>=<view name, view>
+	private final Map<String, View> views = new HashMap<String, View>();
+
+	// <K,V>=<variable name, views over variable>
+	private final Map<String, List<View>> byVariable = new HashMap<String, List<View>>();
+
+	/**
+	 * Registers a view, initialized from committed values of its variables
+	 *
+	 * @param name
+	 *            view name
+	 * @param function
+	 *            aggregate function
+	 * @param variables
+	 *            variable names
+	 * @return registered view
+	 */
+	public synchronized View register(String name, Function function,
+			Collection<String> variables) {
+		if (views.containsKey(name)) {
+			throw new IllegalArgumentException("view " + name
+					+ " already exists");
+		}
+		View view = new View(name, function, TimestampOracle.instance()
+				.next());
+		for (String var : variables) {
+			view.init(var, committedValue(var));
+			List<View> list = byVariable.get(var);
+			if (list == null) {
+				list = new ArrayList<View>();
+				byVariable.put(var, list);
+			}
+			list.add(view);
+		}
+		view.snapshot();
+		views.put(name, view);
+		return view;
+	}
+
+	public synchronized View get(String name) {
+		return views.get(name);
+	}
+
+	/**
+	 * Drops history no reader needs any more
+	 *
+	 * @param horizon
+	 *            begin time of oldest active read-only transaction
+	 */
+	public synchronized void trim(long horizon) {
+		for (View view : views.values()) {
+			view.trim(horizon);
+		}
+	}
+
+	/**
+	 * @return true if no view is registered
+	 */
+	public boolean isEmpty() {
+		return byVariable.isEmpty();
+	}
+
+	/**
+	 * Applies a committed write to all views over the variable
+	 *
+	 * @param var
+	 *            variable name
+	 * @param value
+	 *            committed value
+	 * @param commitTime
+	 *            commit timestamp of writing transaction
+	 */
+	public void apply(String var, int value, long commitTime) {
+		if (isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			List<View> list = byVariable.get(var);
+			if (list == null) {
+				return;
+			}
+			for (View view : list) {
+				view.apply(var, value, commitTime);
+			}
+		}
+	}
+
+	/**
+	 * Reads view as of begin time of a read-only transaction. A view
+	 * registered after the transaction began is computed from the snapshot
+	 * values of its variables.
+	 *
+	 * @param view
+	 *            view
+	 * @param t
+	 *            read-only transaction
+	 * @return aggregate, or null if a variable has no committed copy at a
+	 *         running site
+	 */
+	public static Long read(View view, Transaction t) {
+		Long value = view.valueByTime(t.beginTime);
+		if (value != null) {
+			return value;
+		}
+		List<Integer> values = new ArrayList<Integer>();
+		for (String var : view.getVariables()) {
+			Site site = DM.instance().committedCopy(var);
+			if (site == null) {
+				return null;
+			}
+			values.add(site.readInitial(t.getId(), var));
+		}
+		return aggregate(view.function, values);
+	}
+
+	/**
+	 * Computes aggregate from scratch
+	 *
+	 * @param function
+	 *            aggregate function
+	 * @param values
+	 *            values of variables
+	 * @return aggregate, 0 for MIN and MAX over no values
+	 */
+	public static long aggregate(Function function, Collection<Integer> values) {
+		long result = 0;
+		boolean first = true;
+		for (int value : values) {
+			if (function == Function.SUM) {
+				result += value;
+			} else if (function == Function.COUNT) {
+				result++;
+			} else if (first || function == Function.MIN && value < result
+					|| function == Function.MAX && value > result) {
+				result = value;
+			}
+			first = false;
+		}
+		return result;
+	}
+
+	/**
+	 * @param var
+	 *            variable name
+	 * @return committed value at first running site with a valid copy, or
+	 *         at any site holding the variable if none is running
+	 */
+	private static int committedValue(String var) {
+		Site site = DM.instance().committedCopy(var);
+		if (site == null) {
+			for (Site s : DM.instance()) {
+				if (s.hasVariable(var)) {
+					site = s;
+					break;
+				}
+			}
+		}
+		return site.committed(var).value;
+	}
+
+	/**
+	 * An aggregate over a set of variables with its history, guarded by its
+	 * own monitor.
+	 */
+	public static class View {
+
+		public final String name;
+
+		public final Function function;
+
+		// <K,V>=<variable name, current value>
+		private final Map<String, Integer> values = new HashMap<String, Integer>();
+
+		// <K,V>=<variable name, commit timestamp of last applied write>
+		private final Map<String, Long> applied = new HashMap<String, Long>();
+
+		// <K,V>=<value, number of variables holding it>, for MIN and MAX
+		private final TreeMap<Integer, Integer> counts = new TreeMap<Integer, Integer>();
+
+		private long sum = 0;
+
+		// <K,V>=<timestamp, aggregate from that time on>
+		private final TreeMap<Long, Long> history = new TreeMap<Long, Long>();
+
+		// changes after first entry of history, in timestamp order
+		private final List<Change> changes = new ArrayList<Change>();
+
+		private final long createTime;
+
+		// timestamp of last change
+		private long time;
+
+		View(String name, Function function, long createTime) {
+			this.name = name;
+			this.function = function;
+			this.createTime = createTime;
+			this.time = createTime;
+		}
+
+		public Collection<String> getVariables() {
+			return values.keySet();
+		}
+
+		private synchronized void init(String var, int value) {
+			if (values.containsKey(var)) {
+				return;
+			}
+			values.put(var, value);
+			applied.put(var, createTime);
+			add(value);
+		}
+
+		private synchronized void apply(String var, int value,
+				long commitTime) {
+			if (commitTime <= applied.get(var)) {
+				// applied at another copy already, or older than view
+				return;
+			}
+			applied.put(var, commitTime);
+			int old = values.get(var);
+			if (old == value) {
+				return;
+			}
+			if (commitTime >= time) {
+				Change change = new Change(commitTime, var, old, value);
+				change.redo();
+				changes.add(change);
+				time = commitTime;
+				snapshot(time);
+				return;
+			}
+			// in doubt, applied after younger writes of other variables:
+			// undo them, apply it at its timestamp, or at the oldest one
+			// kept, and apply them again
+			long at = Math.max(commitTime, history.firstKey());
+			int position = changes.size();
+			while (position > 0 && changes.get(position - 1).time > at) {
+				position--;
+				changes.get(position).undo();
+			}
+			Change change = new Change(at, var, old, value);
+			change.redo();
+			changes.add(position, change);
+			snapshot(at);
+			for (int i = position + 1; i < changes.size(); i++) {
+				changes.get(i).redo();
+				snapshot(changes.get(i).time);
+			}
+		}
+
+		/**
+		 * Drops history older than a reader needs, keeping the aggregate
+		 * as of that reader
+		 *
+		 * @param horizon
+		 *            begin time of oldest active reader
+		 */
+		private synchronized void trim(long horizon) {
+			Long first = history.floorKey(horizon);
+			if (first == null) {
+				return;
+			}
+			history.headMap(first).clear();
+			int position = 0;
+			while (position < changes.size()
+					&& changes.get(position).time <= first) {
+				position++;
+			}
+			changes.subList(0, position).clear();
+		}
+
+		private void add(int value) {
+			sum += value;
+			Integer count = counts.get(value);
+			counts.put(value, count == null ? 1 : count + 1);
+		}
+
+		private void remove(int value) {
+			sum -= value;
+			int count = counts.get(value);
+			if (count == 1) {
+				counts.remove(value);
+			} else {
+				counts.put(value, count - 1);
+			}
+		}
+
+		private synchronized void snapshot() {
+			snapshot(time);
+		}
+
+		private void snapshot(long at) {
+			history.put(at, current());
+		}
+
+		/**
+		 * @return aggregate over committed values
+		 */
+		public synchronized long current() {
+			switch (function) {
+			case SUM:
+				return sum;
+			case COUNT:
+				return values.size();
+			case MIN:
+				return counts.isEmpty() ? 0 : counts.firstKey();
+			default:
+				return counts.isEmpty() ? 0 : counts.lastKey();
+			}
+		}
+
+		/**
+		 * Returns aggregate as of a timestamp
+		 *
+		 * @param beginTime
+		 *            timestamp reader began at
+		 * @return aggregate, or null if view was registered later
+		 */
+		public synchronized Long valueByTime(long beginTime) {
+			Map.Entry<Long, Long> entry = history.floorEntry(beginTime);
+			return entry == null ? null : entry.getValue();
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + function + values.keySet();
+		}
+
+		/**
+		 * A committed write applied to the aggregate.
+		 */
+		private class Change {
+
+			private final long time;
+
+			private final String var;
+
+			private final int old;
+
+			private final int value;
+
+			Change(long time, String var, int old, int value) {
+				this.time = time;
+				this.var = var;
+				this.old = old;
+				this.value = value;
+			}
+
+			private void redo() {
+				values.put(var, value);
+				remove(old);
+				add(value);
+			}
+
+			private void undo() {
+				values.put(var, old);
+				remove(value);
+				add(old);
+			}
+		}
+	}
+}
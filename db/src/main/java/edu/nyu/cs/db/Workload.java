@@ -0,0 +1,356 @@
+package edu.nyu.cs.db;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.nyu.cs.db.MainClass.Clock;
+
+/**
+ * Synthetic workload generator.
+ * <p>
+ * Generates YCSB style transactions over variables <code>x1..xn</code>:
+ * <code>clients</code> transactions run at a time. Clients are closed-loop:
+ * each issues one operation per tick, but not before its previous operation
+ * has executed, so a transaction blocked on a lock does not pile up commands
+ * behind it. Variables are drawn from a Zipfian distribution, and
+ * sites fail and recover at random if a failure rate is given.
+ * <p>
+ * If <code>db.workload.output</code> is given the workload is written to that
+ * file in {@link FileManager} input format. Otherwise it drives the
+ * transaction manager directly, restarts aborted transactions with new ids
+ * and reports throughput, abort rate and latency percentiles at the end.
+ * <p>
+ * Options, as system properties:
+ * <ul>
+ * <li><code>db.workload.transactions</code> transactions to run (1000)</li>
+ * <li><code>db.workload.clients</code> concurrent transactions (4)</li>
+ * <li><code>db.workload.length</code> operations per transaction (4)</li>
+ * <li><code>db.workload.reads</code> percentage of reads (50)</li>
+ * <li><code>db.workload.readonly</code> percentage of read-only transactions
+ * (0)</li>
+ * <li><code>db.workload.theta</code> Zipfian skew, 0 for uniform (0.99)</li>
+ * <li><code>db.workload.failures</code> site failures per 1000 ticks (0)</li>
+ * <li><code>db.workload.downtime</code> ticks until a failed site recovers
+ * (10)</li>
+ * <li><code>db.workload.declare</code> declare read and write sets at begin
+ * (true in deterministic mode)</li>
+ * <li><code>db.workload.batch</code> issue all operations of a transaction as
+ * one <code>RW</code> command (false)</li>
+ * <li><code>db.workload.seed</code> random seed (42)</li>
+ * </ul>
+ *
+ * @author Daniel Wu
+ *
+ */
+public class Workload {
+
+	private final int transactions;
+
+	private final int length;
+
+	private final int readPercent;
+
+	private final int readOnlyPercent;
+
+	private final int failurePermille;
+
+	private final int downtime;
+
+	// declare read and write sets at begin
+	private final boolean declare;
+
+	// issue operations of a transaction as one batch
+	private final boolean batch;
+
+	private final Random random;
+
+	private final ZipfianGenerator keys;
+
+	// running transaction of each client
+	private final Client[] clients;
+
+	// tick at which each site recovers, 0 if running
+	private final long[] recoverAt = new long[DM.SITE_COUNT + 1];
+
+	private long tick = 0;
+
+	private int started = 0;
+
+	// transactions begun, including restarts
+	private int issued = 0;
+
+	public Workload() {
+		this.transactions = Config.getInt("db.workload.transactions", 1000);
+		this.length = Config.getInt("db.workload.length", 4);
+		this.readPercent = Config.getInt("db.workload.reads", 50);
+		this.readOnlyPercent = Config.getInt("db.workload.readonly", 0);
+		this.failurePermille = Config.getInt("db.workload.failures", 0);
+		this.downtime = Config.getInt("db.workload.downtime", 10);
+		this.declare = Config.getBoolean("db.workload.declare",
+				Protocol.configured() == Protocol.DETERMINISTIC);
+		this.batch = Config.getBoolean("db.workload.batch", false);
+		this.random = new Random(Config.getInt("db.workload.seed", 42));
+		double theta = Double.parseDouble(Config.getString(
+				"db.workload.theta", "0.99"));
+		this.keys = new ZipfianGenerator(DM.VAR_COUNT, theta, random);
+		this.clients = new Client[Config.getInt("db.workload.clients", 4)];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new Client();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Workload workload = new Workload();
+		String output = Config.getString("db.workload.output", null);
+		if (output != null) {
+			workload.write(output);
+			return;
+		}
+		// per-operation output would dominate the run
+		if (System.getProperty(Config.LOG_VERBOSITY) == null) {
+			Log.setVerbosity(Log.Verbosity.AUDIT);
+		}
+		long start = System.nanoTime();
+		workload.drive();
+		long elapsed = System.nanoTime() - start;
+		Log.print(report(elapsed));
+		if (Contention.instance().getSample() > 0) {
+			// hot variables of the run
+			CommandFactory.parse("contention()").execute();
+		}
+		Log.close();
+	}
+
+	/**
+	 * Writes workload as input file
+	 *
+	 * @param path
+	 *            output file
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	public void write(String path) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(path), 1 << 16);
+		try {
+			while (!finished()) {
+				out.write(nextLine(false));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Runs workload against transaction manager
+	 */
+	public void drive() {
+		TM.instance();
+		DM.instance();
+		while (!finished()) {
+			String line = nextLine(true);
+			Clock.tiktok();
+			TM.instance().process(FileManager.parseLine(line));
+		}
+		TM.instance().groupCommit().flush();
+	}
+
+	private boolean finished() {
+		if (started < transactions) {
+			return false;
+		}
+		for (Client client : clients) {
+			if (client.transId != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Generates commands of next tick, one per client plus site failures
+	 *
+	 * @param live
+	 *            true if transaction manager state can be checked, so that
+	 *            aborted transactions are restarted
+	 * @return input line
+	 */
+	private String nextLine(boolean live) {
+		tick++;
+		StringBuilder line = new StringBuilder();
+		for (Client client : clients) {
+			if (live && client.transId != null
+					&& TM.instance().getTransaction(client.transId) == null) {
+				if (!client.ended) {
+					// aborted, retry as new transaction
+					started--;
+				}
+				client.transId = null;
+				client.ended = false;
+			}
+			append(line, client.next(live));
+		}
+		for (int site = 1; site <= DM.SITE_COUNT; site++) {
+			if (recoverAt[site] == tick) {
+				recoverAt[site] = 0;
+				append(line, "recover(" + site + ")");
+			} else if (recoverAt[site] == 0 && failurePermille > 0
+					&& random.nextInt(1000 * DM.SITE_COUNT) < failurePermille) {
+				recoverAt[site] = tick + downtime;
+				append(line, "fail(" + site + ")");
+			}
+		}
+		return line.toString();
+	}
+
+	private static void append(StringBuilder line, String command) {
+		if (command == null) {
+			return;
+		}
+		if (line.length() > 0) {
+			line.append(FileManager.DELIMITER);
+		}
+		line.append(command);
+	}
+
+	/**
+	 * Formats throughput, abort rate and latency percentiles of the run
+	 *
+	 * @param elapsedNanos
+	 *            wall clock time of the run
+	 * @return report
+	 */
+	public static String report(long elapsedNanos) {
+		Metrics metrics = Metrics.instance();
+		Histogram latency = metrics.getTransactionLatency();
+		long commits = metrics.getCommits();
+		long aborts = metrics.getAborts();
+		double seconds = elapsedNanos / 1e9;
+		return String.format(
+				"Workload [elapsed=%.3fs, committed=%d, aborted=%d, "
+						+ "throughput=%.1f tx/s, abort rate=%.2f%%]%n"
+						+ "  latency us: p50=%d p95=%d p99=%d max=%d",
+				seconds, commits, aborts, commits / seconds,
+				commits + aborts == 0 ? 0.0 : 100.0 * aborts
+						/ (commits + aborts),
+				latency.getValueAtPercentile(50) / 1000,
+				latency.getValueAtPercentile(95) / 1000,
+				latency.getValueAtPercentile(99) / 1000,
+				latency.getMax() / 1000);
+	}
+
+	/**
+	 * A client runs one transaction after another.
+	 */
+	private class Client {
+
+		private String transId = null;
+
+		// true once end is issued, the client then waits for the outcome
+		private boolean ended = false;
+
+		// operations of current transaction not issued yet
+		private final LinkedList<String> operations = new LinkedList<String>();
+
+		/**
+		 * @param live
+		 *            true if client waits for each operation to execute and
+		 *            for its transaction to finish before it begins the next
+		 *            one
+		 * @return next command of this client, or null if it is done or
+		 *         waiting
+		 */
+		private String next(boolean live) {
+			if (transId == null) {
+				if (started >= transactions) {
+					return null;
+				}
+				started++;
+				transId = "T" + (++issued) + "_" + tick;
+				return begin();
+			}
+			if (ended) {
+				return null;
+			}
+			if (live && TM.instance().isWaiting(transId)) {
+				// previous operation is blocked
+				return null;
+			}
+			if (operations.isEmpty()) {
+				String end = "end(" + transId + ")";
+				if (live) {
+					ended = true;
+				} else {
+					transId = null;
+				}
+				return end;
+			}
+			return operations.poll();
+		}
+
+		/**
+		 * Generates all operations of a new transaction
+		 *
+		 * @return begin command, declaring read and write sets if required
+		 */
+		private String begin() {
+			boolean readOnly = random.nextInt(100) < readOnlyPercent;
+			Set<String> reads = new TreeSet<String>(Utility.VARIABLE_ORDER);
+			Set<String> writes = new TreeSet<String>(Utility.VARIABLE_ORDER);
+			// written values, last write of a variable wins
+			Map<String, Integer> values = new TreeMap<String, Integer>(
+					Utility.VARIABLE_ORDER);
+			operations.clear();
+			for (int i = 0; i < length; i++) {
+				String var = "x" + keys.next();
+				if (readOnly || random.nextInt(100) < readPercent) {
+					reads.add(var);
+					operations.add("R(" + transId + "," + var + ")");
+				} else {
+					int value = random.nextInt(1000);
+					writes.add(var);
+					values.put(var, value);
+					operations.add("W(" + transId + "," + var + "," + value
+							+ ")");
+				}
+			}
+			if (batch) {
+				Set<String> assignments = new LinkedHashSet<String>();
+				for (Map.Entry<String, Integer> value : values.entrySet()) {
+					assignments.add(value.getKey() + "=" + value.getValue());
+				}
+				operations.clear();
+				operations.add("RW(" + transId + "," + list(reads) + ","
+						+ list(assignments) + ")");
+			}
+			if (readOnly) {
+				return "beginRO(" + transId + ")";
+			}
+			if (!declare) {
+				return "begin(" + transId + ")";
+			}
+			return "begin(" + transId + "," + list(reads) + "," + list(writes)
+					+ ")";
+		}
+
+		private String list(Set<String> vars) {
+			StringBuilder sb = new StringBuilder("[");
+			for (String var : vars) {
+				if (sb.length() > 1) {
+					sb.append(',');
+				}
+				sb.append(var);
+			}
+			return sb.append(']').toString();
+		}
+	}
+}
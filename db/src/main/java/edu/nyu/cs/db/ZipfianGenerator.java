@@ -0,0 +1,76 @@
+package edu.nyu.cs.db;
+
+import java.util.Random;
+
+/**
+ * Zipfian distributed integers.
+ * <p>
+ * Draws items from <code>1..n</code> where item <code>i</code> has
+ * probability proportional to <code>1 / i^theta</code>, using the method of
+ * Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as
+ * in YCSB. A theta of 0 gives uniform keys, YCSB uses 0.99 by default.
+ *
+ * @author Daniel Wu
+ *
+ */
+public class ZipfianGenerator {
+
+	private final int items;
+
+	private final double theta;
+
+	private final double alpha;
+
+	private final double zetan;
+
+	private final double eta;
+
+	private final Random random;
+
+	/**
+	 * Constructor with item count, skew and random source
+	 *
+	 * @param items
+	 *            number of items
+	 * @param theta
+	 *            skew, between 0 (uniform) and 1 (exclusive)
+	 * @param random
+	 *            random source
+	 */
+	public ZipfianGenerator(int items, double theta, Random random) {
+		if (theta < 0 || theta >= 1) {
+			throw new IllegalArgumentException("theta must be in [0, 1)");
+		}
+		this.items = items;
+		this.theta = theta;
+		this.random = random;
+		double zeta2 = zeta(2, theta);
+		this.alpha = 1.0 / (1.0 - theta);
+		this.zetan = zeta(items, theta);
+		this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+	}
+
+	private static double zeta(int n, double theta) {
+		double sum = 0;
+		for (int i = 1; i <= n; i++) {
+			sum += 1 / Math.pow(i, theta);
+		}
+		return sum;
+	}
+
+	/**
+	 * @return next item between 1 and item count, small items are hot
+	 */
+	public int next() {
+		double u = random.nextDouble();
+		double uz = u * zetan;
+		if (uz < 1.0) {
+			return 1;
+		}
+		if (uz < 1.0 + Math.pow(0.5, theta)) {
+			return Math.min(2, items);
+		}
+		int item = 1 + (int) (items * Math.pow(eta * u - eta + 1, alpha));
+		return Math.min(item, items);
+	}
+}
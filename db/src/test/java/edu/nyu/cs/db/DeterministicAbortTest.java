@@ -0,0 +1,62 @@
+package edu.nyu.cs.db;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for aborts of {@link DeterministicEngine}.
+ * <p>
+ * Deterministic transactions stage writes without locks, so an abort must
+ * drop the writes by the transaction that staged them.
+ */
+public class DeterministicAbortTest extends TestCase {
+
+	private static int count = 0;
+
+	private DeterministicEngine engine;
+
+	@Override
+	protected void setUp() {
+		engine = new DeterministicEngine();
+	}
+
+	private static String next() {
+		return "DeterministicAbortTest" + (++count);
+	}
+
+	private void tick(String... commands) {
+		Command[] parsed = new Command[commands.length];
+		for (int i = 0; i < commands.length; i++) {
+			parsed[i] = CommandFactory.parse(commands[i]);
+		}
+		engine.process(parsed);
+	}
+
+	public void testAbortDropsStagedWrites() {
+		int before = DM.instance().getSite(1).readCommitted("x2");
+		String t1 = next();
+		tick("begin(" + t1 + ",[x2],[x2])");
+		tick("W(" + t1 + ",x2,555)");
+		// x4 is not declared, so t1 aborts
+		tick("R(" + t1 + ",x4)");
+		assertNull(TM.instance().getTransaction(t1));
+		for (Site site : DM.instance()) {
+			assertEquals("site " + site.index, before, site.read("x2"));
+			assertEquals("site " + site.index, before, site
+					.readCommitted("x2"));
+		}
+	}
+
+	public void testAbortKeepsWritesOfOthers() {
+		String t1 = next();
+		String t2 = next();
+		tick("begin(" + t1 + ",[x6],[x6])", "begin(" + t2 + ",[x8],[x8])");
+		tick("W(" + t1 + ",x6,555)", "W(" + t2 + ",x8,777)");
+		tick("R(" + t1 + ",x4)");
+		tick("end(" + t2 + ")");
+		for (Site site : DM.instance()) {
+			assertEquals("site " + site.index, 777, site.readCommitted("x8"));
+			assertFalse("site " + site.index,
+					site.readCommitted("x6") == 555);
+		}
+	}
+}
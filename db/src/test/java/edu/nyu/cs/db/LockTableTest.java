@@ -0,0 +1,167 @@
+package edu.nyu.cs.db;
+
+import junit.framework.TestCase;
+
+import edu.nyu.cs.db.LockTable.Mode;
+
+/**
+ * Unit test for multi-granularity locks of {@link LockTable}.
+ * <p>
+ * Lock tables escalate at a fourth variable lock and have ranges of 10
+ * variables: x1 to x10 are range 0, x11 to x20 range 1.
+ */
+public class LockTableTest extends TestCase {
+
+	private static int count = 0;
+
+	private LockTable table;
+
+	private String t1;
+
+	private String t2;
+
+	private String t3;
+
+	@Override
+	protected void setUp() {
+		table = new LockTable(1, 10, 3);
+		t1 = begin();
+		t2 = begin();
+		t3 = begin();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (String id : new String[] { t1, t2, t3 }) {
+			TM.instance().removeTransaction(id);
+		}
+	}
+
+	private static String begin() {
+		Transaction t = new Transaction("LockTableTest" + (++count));
+		TM.instance().addTransaction(t);
+		return t.getId();
+	}
+
+	private void lock(String transId, String var, String lock) {
+		assertTrue(transId + " " + lock + " " + var,
+				table.requireLock(transId, var, lock));
+		table.lock(transId, var, lock);
+	}
+
+	public void testCompatibility() {
+		Mode[] modes = { Mode.IS, Mode.IX, Mode.S, Mode.X };
+		boolean[][] expected = { { true, true, true, false },
+				{ true, true, false, false }, { true, false, true, false },
+				{ false, false, false, false } };
+		for (int i = 0; i < modes.length; i++) {
+			for (int j = 0; j < modes.length; j++) {
+				assertEquals(modes[i] + " with " + modes[j], expected[i][j],
+						modes[i].compatible(modes[j]));
+				// matrix is symmetric
+				assertEquals(modes[i].compatible(modes[j]),
+						modes[j].compatible(modes[i]));
+			}
+		}
+	}
+
+	public void testCombine() {
+		for (Mode mode : Mode.values()) {
+			assertEquals(mode, mode.combine(null));
+			assertEquals(mode, mode.combine(mode));
+			assertEquals(mode, mode.combine(Mode.IS));
+			assertEquals(mode, Mode.IS.combine(mode));
+			assertEquals(Mode.X, mode.combine(Mode.X));
+			assertEquals(Mode.X, Mode.X.combine(mode));
+		}
+		assertEquals(Mode.X, Mode.IX.combine(Mode.S));
+		assertEquals(Mode.X, Mode.S.combine(Mode.IX));
+	}
+
+	public void testNoEscalationUpToLimit() {
+		lock(t1, "x2", LockTable.READ);
+		lock(t1, "x4", LockTable.READ);
+		lock(t1, "x6", LockTable.READ);
+		assertTrue(table.coarseHolders("x2").isEmpty());
+		assertFalse(TM.instance().getTransaction(t1).isCoarseLocked());
+		assertTrue(table.requireLock(t2, "x8", LockTable.WRITE));
+	}
+
+	public void testEscalationToSite() {
+		lock(t1, "x2", LockTable.READ);
+		lock(t1, "x4", LockTable.READ);
+		lock(t1, "x6", LockTable.READ);
+		lock(t1, "x8", LockTable.READ);
+		assertTrue(TM.instance().getTransaction(t1).isCoarseLocked());
+		// S on site covers every variable of the site
+		assertTrue(table.coarseHolders("x20").contains(t1));
+		assertTrue(table.requireLock(t1, "x20", LockTable.READ));
+		assertFalse(table.isWriteLocked(t1, "x2"));
+		// others may read but not write
+		assertTrue(table.requireLock(t2, "x20", LockTable.READ));
+		assertFalse(table.requireLock(t2, "x20", LockTable.WRITE));
+		assertFalse(table.requireLock(t2, "x2", LockTable.WRITE));
+	}
+
+	public void testEscalationToRange() {
+		// intention lock of t2 on site keeps t1 from X on site
+		lock(t2, "x12", LockTable.READ);
+		lock(t1, "x2", LockTable.WRITE);
+		lock(t1, "x4", LockTable.WRITE);
+		lock(t1, "x6", LockTable.WRITE);
+		lock(t1, "x8", LockTable.WRITE);
+		assertTrue(TM.instance().getTransaction(t1).isCoarseLocked());
+		assertTrue(table.coarseHolders("x10").contains(t1));
+		assertFalse(table.coarseHolders("x12").contains(t1));
+		// X on range 0 covers variables t1 did not lock
+		assertTrue(table.isWriteLocked(t1, "x6"));
+		assertTrue(table.isWriteLocked(t1, "x9"));
+		assertFalse(table.isWriteLocked(t1, "x12"));
+		assertTrue(table.requireLock(t1, "x10", LockTable.WRITE));
+		// range 0 is closed to others, range 1 is not
+		assertFalse(table.requireLock(t2, "x1", LockTable.READ));
+		assertFalse(table.requireLock(t3, "x10", LockTable.WRITE));
+		assertTrue(table.requireLock(t2, "x14", LockTable.WRITE));
+		assertTrue(table.requireLock(t3, "x20", LockTable.READ));
+	}
+
+	public void testRangeLockIsIntentionOnSite() {
+		// a writer in range 1 keeps t2 from S on site
+		lock(t3, "x11", LockTable.WRITE);
+		lock(t2, "x1", LockTable.READ);
+		lock(t2, "x3", LockTable.READ);
+		lock(t2, "x5", LockTable.READ);
+		lock(t2, "x7", LockTable.READ);
+		assertTrue(table.coarseHolders("x9").contains(t2));
+		assertFalse(table.coarseHolders("x11").contains(t2));
+		table.releaseTransaction(t3);
+		// S on range 0 is IS on site, so t1 cannot take X on site
+		lock(t1, "x12", LockTable.WRITE);
+		lock(t1, "x14", LockTable.WRITE);
+		lock(t1, "x16", LockTable.WRITE);
+		lock(t1, "x18", LockTable.WRITE);
+		assertFalse(table.coarseHolders("x1").contains(t1));
+		assertTrue(table.coarseHolders("x20").contains(t1));
+		assertFalse(table.requireLock(t1, "x1", LockTable.WRITE));
+		assertTrue(table.requireLock(t1, "x1", LockTable.READ));
+	}
+
+	public void testConflictsWithEscalatedLocks() {
+		lock(t2, "x2", LockTable.READ);
+		lock(t1, "x12", LockTable.WRITE);
+		lock(t1, "x14", LockTable.WRITE);
+		lock(t1, "x16", LockTable.WRITE);
+		lock(t1, "x18", LockTable.WRITE);
+		// X on range 1 conflicts with IS and IX of others in range 1
+		assertFalse(table.requireLock(t2, "x20", LockTable.READ));
+		assertFalse(table.requireLock(t3, "x11", LockTable.WRITE));
+		assertEquals(1, table.coarseHolders("x11").size());
+		// outside it only variable locks conflict
+		assertTrue(table.requireLock(t3, "x2", LockTable.READ));
+		assertFalse(table.requireLock(t3, "x2", LockTable.WRITE));
+		table.releaseTransaction(t1);
+		assertTrue(table.coarseHolders("x11").isEmpty());
+		assertTrue(table.requireLock(t2, "x20", LockTable.READ));
+		assertTrue(table.requireLock(t3, "x11", LockTable.WRITE));
+	}
+}
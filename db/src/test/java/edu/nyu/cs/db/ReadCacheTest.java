@@ -0,0 +1,95 @@
+package edu.nyu.cs.db;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link ReadCache}.
+ * <p>
+ * Fills the cache from a site outside the data manager, so that its copies
+ * are written by the tests only.
+ */
+public class ReadCacheTest extends TestCase {
+
+	private static int count = 0;
+
+	private ReadCache cache;
+
+	private Site site;
+
+	@Override
+	protected void setUp() {
+		cache = new ReadCache(2);
+		site = new Site(2);
+	}
+
+	/**
+	 * Writes and commits a value at the site
+	 *
+	 * @return commit timestamp
+	 */
+	private long commit(String var, int value) {
+		Transaction t = new Transaction("ReadCacheTest" + (++count));
+		site.write(t.getId(), var, value);
+		t.commitTime = TimestampOracle.instance().next();
+		site.commit(t);
+		return t.commitTime;
+	}
+
+	public void testHit() {
+		long time = commit("x1", 11);
+		cache.fill(site, "x1");
+		ReadCache.Entry entry = cache.get("x1", time);
+		assertNotNull(entry);
+		assertEquals(2, entry.site);
+		assertEquals(11, entry.value);
+		assertEquals(time, entry.commitTime);
+		assertEquals(site.version("x1"), entry.version);
+	}
+
+	public void testMissForTransactionBeganBeforeCommit() {
+		long time = commit("x1", 12);
+		cache.fill(site, "x1");
+		assertNull(cache.get("x1", time - 1));
+		assertNotNull(cache.get("x1", time));
+	}
+
+	public void testInvalidateOnCommit() {
+		long first = commit("x2", 21);
+		cache.fill(site, "x2");
+		long second = commit("x2", 22);
+		// as a site does when a write commits
+		cache.invalidate("x2");
+		assertNull(cache.get("x2", second));
+		cache.fill(site, "x2");
+		assertEquals(22, cache.get("x2", second).value);
+		assertNull(cache.get("x2", first));
+	}
+
+	public void testClearOnFailure() {
+		commit("x2", 23);
+		commit("x4", 41);
+		cache.fill(site, "x2");
+		cache.fill(site, "x4");
+		// as a site does when it fails or recovers
+		cache.clear();
+		assertNull(cache.get("x2", Long.MAX_VALUE));
+		assertNull(cache.get("x4", Long.MAX_VALUE));
+	}
+
+	public void testEvictsLeastRecentlyUsed() {
+		cache.fill(site, "x2");
+		cache.fill(site, "x4");
+		assertNotNull(cache.get("x2", Long.MAX_VALUE));
+		cache.fill(site, "x6");
+		assertNull(cache.get("x4", Long.MAX_VALUE));
+		assertNotNull(cache.get("x2", Long.MAX_VALUE));
+		assertNotNull(cache.get("x6", Long.MAX_VALUE));
+	}
+
+	public void testDisabled() {
+		cache = new ReadCache(0);
+		assertFalse(cache.isEnabled());
+		cache.fill(site, "x2");
+		assertNull(cache.get("x2", Long.MAX_VALUE));
+	}
+}
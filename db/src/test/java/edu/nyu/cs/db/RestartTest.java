@@ -0,0 +1,95 @@
+package edu.nyu.cs.db;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TM#restart()} from the commit log.
+ */
+public class RestartTest extends TestCase {
+
+	private static int count = 0;
+
+	@Override
+	protected void tearDown() {
+		for (Site site : DM.instance()) {
+			if (!site.isRunning()) {
+				site.recovery();
+			}
+		}
+	}
+
+	private static String next() {
+		return "RestartTest" + (++count);
+	}
+
+	private static void process(String command) {
+		TM.instance().process(
+				new Command[] { CommandFactory.parse(command) });
+	}
+
+	public void testUncommittedAborted() {
+		int before = DM.instance().getSite(1).readCommitted("x10");
+		String t = next();
+		process("begin(" + t + ")");
+		process("W(" + t + ",x10,1001)");
+		TM.restart();
+		assertNull(TM.instance().getTransaction(t));
+		for (Site site : DM.instance()) {
+			assertEquals("site " + site.index, before, site.read("x10"));
+			assertFalse(site.isPrepared(t));
+		}
+	}
+
+	public void testPreparedResolvedAfterRestart() {
+		Site site = DM.instance().getSite(7);
+		String id = next();
+		process("begin(" + id + ")");
+		process("W(" + id + ",x12,1201)");
+		Transaction t = TM.instance().getTransaction(id);
+		assertTrue(TM.instance().coordinator().prepare(t));
+		// site 7 fails before it learns the decision
+		site.fail();
+		t.end();
+		TM.instance().groupCommit().add(t, System.nanoTime());
+		assertEquals(1201, DM.instance().getSite(1).readCommitted("x12"));
+		assertTrue(site.isPrepared(id));
+		TM.restart();
+		// decision is read back from the log
+		TwoPhaseCommit coordinator = TM.instance().coordinator();
+		assertTrue(coordinator.isCommitting(id));
+		assertEquals(t.commitTime, coordinator.commitTime(id));
+		site.recovery();
+		assertFalse(site.isPrepared(id));
+		assertEquals(1201, site.readCommitted("x12"));
+		assertEquals(t.commitTime, site.commitTime("x12"));
+		assertFalse(coordinator.isCommitting(id));
+	}
+
+	public void testRestartStopsPrepareThreads() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			String t = next();
+			// x16 is replicated, so prepare runs on the pool
+			process("begin(" + t + ")");
+			process("W(" + t + ",x16,1601)");
+			process("end(" + t + ")");
+			TM.restart();
+		}
+		// threads of old coordinators exit once shut down
+		long deadline = System.currentTimeMillis() + 5000;
+		while (prepareThreads() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, prepareThreads());
+	}
+
+	private static int prepareThreads() {
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("prepare-") && thread.isAlive()) {
+				threads++;
+			}
+		}
+		return threads;
+	}
+}
@@ -0,0 +1,153 @@
+package edu.nyu.cs.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link SnapshotExport} and its {@link SnapshotExport.Reader}.
+ */
+public class SnapshotExportTest extends TestCase {
+
+	private static int count = 0;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("snapshot", ".tdbs");
+		file.deleteOnExit();
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	private static long commit(Site site, String var, int value) {
+		Transaction t = new Transaction("SnapshotExportTest" + (++count));
+		site.write(t.getId(), var, value);
+		t.commitTime = TimestampOracle.instance().next();
+		site.commit(t);
+		return t.commitTime;
+	}
+
+	private static int copies(Site site) {
+		int copies = 0;
+		for (int i = 1; i <= DM.VAR_COUNT; i++) {
+			if (site.hasVariable("x" + i)) {
+				copies++;
+			}
+		}
+		return copies;
+	}
+
+	/**
+	 * Reads an export back
+	 *
+	 * @return <K,V>=<"site:variable", {value, version}>
+	 */
+	private Map<String, int[]> read(long time) throws IOException {
+		Map<String, int[]> rows = new HashMap<String, int[]>();
+		SnapshotExport.Reader in = new SnapshotExport.Reader(file.getPath());
+		try {
+			assertEquals(time, in.time);
+			while (in.next()) {
+				rows.put(in.site() + ":" + in.variable(), new int[] {
+						in.value(), in.version() });
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+
+	public void testRoundTrip() throws IOException {
+		// x1, x11 and even variables are at site 2
+		Site site = new Site(2);
+		commit(site, "x1", 11);
+		long time = TimestampOracle.instance().next();
+		long rows = SnapshotExport.export(file.getPath(), time, Collections
+				.singletonList(site));
+		assertEquals(copies(site), rows);
+		Map<String, int[]> read = read(time);
+		assertEquals(rows, read.size());
+		assertEquals(11, read.get("2:1")[0]);
+		assertEquals(1, read.get("2:1")[1]);
+		// not written, initial value
+		assertEquals(20, read.get("2:2")[0]);
+		assertEquals(0, read.get("2:2")[1]);
+		assertFalse(read.containsKey("2:3"));
+	}
+
+	public void testLaterCommitsNotSeen() throws IOException {
+		Site site = new Site(2);
+		commit(site, "x1", 11);
+		long time = TimestampOracle.instance().next();
+		commit(site, "x1", 12);
+		SnapshotExport.export(file.getPath(), time, Collections
+				.singletonList(site));
+		assertEquals(11, read(time).get("2:1")[0]);
+	}
+
+	public void testInvalidAfterRecovery() throws IOException {
+		Site site = new Site(4);
+		commit(site, "x3", 33);
+		site.fail();
+		site.recovery();
+		long time = TimestampOracle.instance().next();
+		SnapshotExport.export(file.getPath(), time, Collections
+				.singletonList(site));
+		Map<String, int[]> read = read(time);
+		// x3 is not replicated and stays readable
+		assertEquals(33, read.get("4:3")[0]);
+		assertEquals(1, read.get("4:3")[1]);
+		assertEquals(SnapshotExport.INVALID, read.get("4:2")[1]);
+	}
+
+	public void testBackgroundExportOfRunningSites()
+			throws InterruptedException, IOException {
+		int running = 0;
+		int rows = 0;
+		for (Site site : DM.instance()) {
+			if (site.isRunning()) {
+				running++;
+				rows += copies(site);
+			}
+		}
+		SnapshotExport.start(file.getPath()).join();
+		SnapshotExport.await();
+		SnapshotExport.Reader in = new SnapshotExport.Reader(file.getPath());
+		int previous = 0;
+		int read = 0;
+		try {
+			while (in.next()) {
+				// ordered by site
+				assertTrue(in.site() >= previous);
+				previous = in.site();
+				read++;
+			}
+		} finally {
+			in.close();
+		}
+		assertEquals(DM.SITE_COUNT, running);
+		assertEquals(rows, read);
+	}
+
+	public void testNotAnExport() throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[24]);
+		out.close();
+		try {
+			new SnapshotExport.Reader(file.getPath()).close();
+			fail("read a file that is not an export");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
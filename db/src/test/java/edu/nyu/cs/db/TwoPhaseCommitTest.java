@@ -0,0 +1,143 @@
+package edu.nyu.cs.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TwoPhaseCommit} and in-doubt transactions of
+ * {@link Site}.
+ * <p>
+ * Each test writes its own replicated variable, so that tests sharing the
+ * data manager don't see each other's writes.
+ */
+public class TwoPhaseCommitTest extends TestCase {
+
+	private static int count = 0;
+
+	private final List<Transaction> begun = new ArrayList<Transaction>();
+
+	private TwoPhaseCommit coordinator;
+
+	@Override
+	protected void setUp() {
+		coordinator = TM.instance().coordinator();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (Site site : DM.instance()) {
+			if (!site.isRunning()) {
+				site.recovery();
+			}
+		}
+		for (Transaction t : begun) {
+			for (Site site : DM.instance()) {
+				site.abort(t);
+				site.forget(t.getId());
+			}
+			TM.instance().removeTransaction(t.getId());
+		}
+	}
+
+	private Transaction begin() {
+		Transaction t = new Transaction("TwoPhaseCommitTest" + (++count));
+		TM.instance().addTransaction(t);
+		t.begin();
+		begun.add(t);
+		return t;
+	}
+
+	/**
+	 * Stages a write at all running copies
+	 */
+	private static void write(Transaction t, String var, int value) {
+		for (Site site : DM.instance()) {
+			if (site.isRunning() && site.hasVariable(var)) {
+				site.write(t.getId(), var, value);
+			}
+		}
+		t.addVaraible(var);
+	}
+
+	private void commit(Transaction t) {
+		t.commitTime = TimestampOracle.instance().next();
+		coordinator.commit(Collections.singletonList(t));
+	}
+
+	public void testCommitAtAllParticipants() {
+		Transaction t = begin();
+		write(t, "x14", 141);
+		assertTrue(coordinator.prepare(t));
+		for (Site site : DM.instance()) {
+			assertTrue(site.isPrepared(t.getId()));
+		}
+		commit(t);
+		for (Site site : DM.instance()) {
+			assertFalse(site.isPrepared(t.getId()));
+			assertEquals(141, site.readCommitted("x14"));
+		}
+		// acknowledged by all participants
+		assertFalse(coordinator.isCommitting(t.getId()));
+	}
+
+	public void testAbortAfterPrepare() {
+		Site site = DM.instance().getSite(3);
+		int before = site.readCommitted("x16");
+		Transaction t = begin();
+		write(t, "x16", 161);
+		// first round without a decision, as when another participant
+		// votes no
+		for (Site participant : DM.instance()) {
+			assertEquals(TwoPhaseCommit.Vote.YES, participant.prepare(t));
+		}
+		DM.instance().getSite(1).abort(t);
+		assertFalse(DM.instance().getSite(1).isPrepared(t.getId()));
+		assertEquals(before, DM.instance().getSite(1).readCommitted("x16"));
+		// prepared writes survive failure, abort is presumed at recovery
+		site.fail();
+		assertTrue(site.isPrepared(t.getId()));
+		site.recovery();
+		assertFalse(site.isPrepared(t.getId()));
+		assertEquals(before, site.readCommitted("x16"));
+		assertEquals(Boolean.FALSE, coordinator.resolve(t.getId(), 3));
+	}
+
+	public void testInDoubtCommitResolvedAtRecovery() {
+		Site site = DM.instance().getSite(4);
+		Transaction t = begin();
+		write(t, "x18", 181);
+		assertTrue(coordinator.prepare(t));
+		site.fail();
+		commit(t);
+		// site 4 did not acknowledge
+		assertTrue(coordinator.isCommitting(t.getId()));
+		assertEquals(t.commitTime, coordinator.commitTime(t.getId()));
+		assertTrue(site.isPrepared(t.getId()));
+		assertEquals(181, DM.instance().getSite(5).readCommitted("x18"));
+		site.recovery();
+		assertFalse(site.isPrepared(t.getId()));
+		assertEquals(181, site.readCommitted("x18"));
+		assertEquals(t.commitTime, site.commitTime("x18"));
+		assertFalse(coordinator.isCommitting(t.getId()));
+	}
+
+	public void testUndecidedStaysPreparedAtRecovery() {
+		Site site = DM.instance().getSite(6);
+		Transaction t = begin();
+		Transaction other = begin();
+		write(t, "x20", 201);
+		assertTrue(coordinator.prepare(t));
+		site.fail();
+		site.recovery();
+		// no decision yet, writes stay prepared and locked
+		assertNull(coordinator.resolve(t.getId(), 6));
+		assertTrue(site.isPrepared(t.getId()));
+		assertFalse(site.lock(other.getId(), "x20", LockTable.WRITE));
+		commit(t);
+		assertFalse(site.isPrepared(t.getId()));
+		assertEquals(201, site.readCommitted("x20"));
+	}
+}
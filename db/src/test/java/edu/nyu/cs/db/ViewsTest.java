@@ -0,0 +1,127 @@
+package edu.nyu.cs.db;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for aggregate {@link Views}.
+ * <p>
+ * Views are over x3, x5 and x7, which other tests don't write.
+ */
+public class ViewsTest extends TestCase {
+
+	private static int count = 0;
+
+	private static final List<String> VARIABLES = Arrays.asList("x3", "x5",
+			"x7");
+
+	private final TimestampOracle clock = TimestampOracle.instance();
+
+	private Views views;
+
+	@Override
+	protected void setUp() {
+		views = new Views();
+	}
+
+	private static int committed(String var) {
+		return DM.instance().committedCopy(var).committed(var).value;
+	}
+
+	public void testAggregates() {
+		int x3 = committed("x3");
+		int x5 = committed("x5");
+		int x7 = committed("x7");
+		Views.View sum = views.register("S", Views.Function.SUM, VARIABLES);
+		Views.View counted = views.register("C", Views.Function.COUNT,
+				VARIABLES);
+		Views.View min = views.register("N", Views.Function.MIN, VARIABLES);
+		Views.View max = views.register("M", Views.Function.MAX, VARIABLES);
+		assertEquals(x3 + x5 + x7, sum.current());
+		assertEquals(3, counted.current());
+		views.apply("x5", -1, clock.next());
+		views.apply("x7", 1000, clock.next());
+		assertEquals(x3 - 1 + 1000, sum.current());
+		assertEquals(3, counted.current());
+		assertEquals(-1, min.current());
+		assertEquals(1000, max.current());
+		try {
+			views.register("S", Views.Function.SUM, VARIABLES);
+			fail("view registered twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testReadAsOfBeginTime() {
+		int x3 = committed("x3");
+		int x5 = committed("x5");
+		int x7 = committed("x7");
+		Views.View sum = views.register("S", Views.Function.SUM, VARIABLES);
+		long before = clock.next();
+		long t1 = clock.next();
+		views.apply("x3", 300, t1);
+		long t2 = clock.next();
+		views.apply("x3", 301, t2);
+		assertEquals(Long.valueOf(x3 + x5 + x7), sum.valueByTime(before));
+		assertEquals(Long.valueOf(300 + x5 + x7), sum.valueByTime(t1));
+		assertEquals(Long.valueOf(301 + x5 + x7), sum.valueByTime(t2));
+		// a write applied again at another copy is ignored
+		views.apply("x3", 301, t2);
+		views.apply("x3", 300, t1);
+		assertEquals(301 + x5 + x7, sum.current());
+	}
+
+	public void testLateWriteInTimestampOrder() {
+		int x5 = committed("x5");
+		int x7 = committed("x7");
+		Views.View sum = views.register("S", Views.Function.SUM, VARIABLES);
+		Views.View max = views.register("M", Views.Function.MAX, VARIABLES);
+		long t1 = clock.next();
+		long t2 = clock.next();
+		long t3 = clock.next();
+		long t4 = clock.next();
+		views.apply("x5", 1, t2);
+		views.apply("x7", 5, t4);
+		// in doubt at t1, applied once its site recovers
+		views.apply("x3", 100, t1);
+		views.apply("x5", 7, t3);
+		assertEquals(Long.valueOf(100 + x5 + x7), sum.valueByTime(t1));
+		assertEquals(Long.valueOf(100 + 1 + x7), sum.valueByTime(t2));
+		assertEquals(Long.valueOf(100 + 7 + x7), sum.valueByTime(t3));
+		assertEquals(Long.valueOf(100 + 7 + 5), sum.valueByTime(t4));
+		assertEquals(100 + 7 + 5, sum.current());
+		assertEquals(100, max.current());
+		// history before t3 is not needed any more
+		views.trim(t3);
+		assertEquals(Long.valueOf(100 + 7 + x7), sum.valueByTime(t3));
+		assertEquals(Long.valueOf(100 + 7 + 5), sum.valueByTime(t4));
+		// x3 was written at t1 already, this write is ignored
+		views.apply("x3", 3, t1);
+		assertEquals(100 + 7 + 5, sum.current());
+	}
+
+	public void testValueAfterAbort() {
+		Views shared = TM.instance().views();
+		Views.View sum = shared.register("ViewsTest" + (++count),
+				Views.Function.SUM, VARIABLES);
+		long before = sum.current();
+		// x5 is held by site 6 only
+		Site site = DM.instance().getSite(6);
+		int x5 = site.readCommitted("x5");
+		Transaction aborted = new Transaction("ViewsTest" + (++count));
+		site.write(aborted.getId(), "x5", x5 + 500);
+		site.abort(aborted);
+		assertEquals(before, sum.current());
+		Transaction committed = new Transaction("ViewsTest" + (++count));
+		site.write(committed.getId(), "x5", x5 + 5);
+		committed.commitTime = clock.next();
+		site.commit(committed);
+		assertEquals(before + 5, sum.current());
+		assertEquals(Long.valueOf(before), sum
+				.valueByTime(committed.commitTime - 1));
+		assertEquals(x5 + 5, site.readCommitted("x5"));
+	}
+}